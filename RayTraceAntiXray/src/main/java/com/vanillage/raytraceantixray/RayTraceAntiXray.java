@@ -6,15 +6,17 @@ import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.vanillage.raytraceantixray.antixray.ChunkPacketBlockControllerAntiXray;
 import com.vanillage.raytraceantixray.commands.RayTraceAntiXrayTabExecutor;
-import com.vanillage.raytraceantixray.data.ChunkBlocks;
+import com.vanillage.raytraceantixray.data.ChunkBlocksIndex;
 import com.vanillage.raytraceantixray.data.PlayerData;
 import com.vanillage.raytraceantixray.data.VectorialLocation;
 import com.vanillage.raytraceantixray.listeners.PlayerListener;
 import com.vanillage.raytraceantixray.listeners.WorldListener;
 import com.vanillage.raytraceantixray.net.DuplexHandlerImpl;
+import com.vanillage.raytraceantixray.tasks.AdaptiveCadence;
 import com.vanillage.raytraceantixray.tasks.RayTraceCallable;
 import com.vanillage.raytraceantixray.tasks.RayTraceTimerTask;
 import com.vanillage.raytraceantixray.tasks.UpdateBukkitRunnable;
+import com.vanillage.raytraceantixray.util.BoundedExecutorService;
 import io.papermc.paper.configuration.WorldConfiguration.Anticheat.AntiXray;
 import io.papermc.paper.configuration.type.EngineMode;
 import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
@@ -41,6 +43,7 @@ import java.io.File;
 import java.util.Timer;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class RayTraceAntiXray extends JavaPlugin {
     // private volatile Configuration configuration;
@@ -48,11 +51,21 @@ public final class RayTraceAntiXray extends JavaPlugin {
     private boolean leaf = false;
     private volatile boolean running = false;
     private volatile boolean timingsEnabled = false;
-    private final ConcurrentMap<ClientboundLevelChunkWithLightPacket, ChunkBlocks> packetChunkBlocksCache = new MapMaker().weakKeys().makeMap();
+    private final ConcurrentMap<ClientboundLevelChunkWithLightPacket, ChunkBlocksIndex> packetChunkBlocksCache = new MapMaker().weakKeys().makeMap();
     private final ConcurrentMap<UUID, PlayerData> playerData = new ConcurrentHashMap<>();
     private ExecutorService executorService;
     private Timer timer;
     private long updateTicks = 1L;
+    private long rayTraceBudget;
+    private double rayTraceBudgetFraction;
+    private long playerTraceBudget;
+    private int nearChunkRadius;
+    private volatile long rayTraceDeadline;
+    private volatile long rayTraceTick;
+    private long rayTraceInterval;
+    private boolean pipelinedScheduling;
+    private int forkJoinChunks;
+    private AdaptiveCadence adaptiveCadence;
 
     @Override
     public void onEnable() {
@@ -89,10 +102,46 @@ public final class RayTraceAntiXray extends JavaPlugin {
         // Use a combination of a tick thread (timer) and a ray trace thread pool.
         // The timer schedules tasks (a task per player) to the thread pool and ensures a common and defined tick start and end time without overlap by waiting for the thread pool to finish all tasks.
         // A scheduled thread pool with a task per player would also be possible but then there's no common tick.
-        executorService = Executors.newFixedThreadPool(Math.max(config.getInt("settings.anti-xray.ray-trace-threads"), 1), new ThreadFactoryBuilder().setThreadFactory(Executors.defaultThreadFactory()).setNameFormat("RayTraceAntiXray ray trace thread %d").setDaemon(true).build());
+        int rayTraceThreads = Math.max(config.getInt("settings.anti-xray.ray-trace-threads"), 1);
+        forkJoinChunks = Math.max(config.getInt("settings.anti-xray.fork-join-chunks"), 0);
+        String executor = config.getString("settings.anti-xray.executor", "fixed");
+        executorService = switch (executor) {
+            case "work-stealing" -> createWorkStealingPool(rayTraceThreads);
+            case "virtual" -> createVirtualThreadExecutor(rayTraceThreads);
+            default -> {
+                if (!executor.equals("fixed")) {
+                    getLogger().warning("Unknown executor " + executor + ", using fixed");
+                }
+
+                yield Executors.newFixedThreadPool(rayTraceThreads, new ThreadFactoryBuilder().setThreadFactory(Executors.defaultThreadFactory()).setNameFormat("RayTraceAntiXray ray trace thread %d").setDaemon(true).build());
+            }
+        };
+
+        // Subtasks are only forked from within a fork/join pool, see RayTraceCallable#traceChunks.
+        if (forkJoinChunks > 0 && !(executorService instanceof ForkJoinPool)) {
+            getLogger().warning("fork-join-chunks is only used with the work-stealing executor, the chunks of a player are traced on one thread with the " + executor + " executor");
+        }
+
         // Use a timer instead of a single thread scheduled executor because there is no equivalent for the timer's schedule method.
         RayTraceTimerTask rayTraceTimerTask = new RayTraceTimerTask(this);
         long tickSpeed = Math.max(config.getLong("settings.anti-xray.ms-per-ray-trace-tick"), 1L);
+        rayTraceBudgetFraction = Math.min(Math.max(config.getDouble("settings.anti-xray.ray-trace-budget"), 0.), 1.);
+        rayTraceBudget = (long) (tickSpeed * 1000000L * rayTraceBudgetFraction);
+        playerTraceBudget = Math.max(config.getLong("settings.anti-xray.player-trace-budget"), 0L);
+        nearChunkRadius = Math.max(config.getInt("settings.anti-xray.near-chunk-radius"), 0);
+        rayTraceInterval = TimeUnit.MILLISECONDS.toNanos(leaf ? updateTicks * 50L : tickSpeed);
+        pipelinedScheduling = config.getBoolean("settings.anti-xray.pipelined-scheduling");
+
+        if (config.getBoolean("settings.anti-xray.adaptive-cadence")) {
+            // The timers run at the minimum intervals, the tasks skip runs that aren't due yet.
+            long maxRayTraceInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(config.getLong("settings.anti-xray.max-ms-per-ray-trace-tick"), 1L));
+            int maxUpdateTicks = Math.max(config.getInt("settings.anti-xray.max-update-ticks"), 1);
+            double targetMspt = Math.max(config.getDouble("settings.anti-xray.target-mspt"), 0.);
+            adaptiveCadence = new AdaptiveCadence(rayTraceInterval, maxRayTraceInterval, (int) updateTicks, maxUpdateTicks, targetMspt);
+        } else {
+            adaptiveCadence = null;
+        }
+
         // use vt in leaf server
         if (leaf) {
             Bukkit.getScheduler().runTaskTimerAsynchronously(this, rayTraceTimerTask,0L, updateTicks);
@@ -115,7 +164,11 @@ public final class RayTraceAntiXray extends JavaPlugin {
         for (Player p : Bukkit.getOnlinePlayers()) {
             PlayerData data = new PlayerData(getLocations(p, new VectorialLocation(p.getLocation())));
             data.setCallable(new RayTraceCallable(this, data));
-            getPlayerData().put(p.getUniqueId(), data);
+            PlayerData oldData = getPlayerData().put(p.getUniqueId(), data);
+
+            if (oldData != null) {
+                oldData.setRemoved();
+            }
 
             if (!p.hasMetadata("NPC")) {
                 new DuplexHandlerImpl(this, p)
@@ -128,6 +181,33 @@ public final class RayTraceAntiXray extends JavaPlugin {
         getLogger().info(getPluginMeta().getDisplayName() + " enabled");
     }
 
+    // Idle threads steal the tasks of busy threads, including the fork/join subtasks of a player's chunks.
+    private static ExecutorService createWorkStealingPool(int parallelism) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("RayTraceAntiXray ray trace thread " + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    // A virtual thread per task, i.e. per player and ray trace tick. At most parallelism tasks run at once, the others are parked.
+    // Virtual threads require Java 21, the plugin is compiled for Java 17, so they are created reflectively.
+    private ExecutorService createVirtualThreadExecutor(int parallelism) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "RayTraceAntiXray ray trace thread ", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            ExecutorService executorService = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+            return new BoundedExecutorService(executorService, parallelism);
+        } catch (ReflectiveOperationException e) {
+            getLogger().warning("Virtual threads aren't available, using work-stealing");
+            return createWorkStealingPool(parallelism);
+        }
+    }
+
     @Override
     public void onDisable() {
         HandlerList.unregisterAll(this);
@@ -225,7 +305,11 @@ public final class RayTraceAntiXray extends JavaPlugin {
         for (Player bp : players) {
             PlayerData data = new PlayerData(getLocations(bp, new VectorialLocation(bp.getLocation())));
             data.setCallable(new RayTraceCallable(this, data));
-            getPlayerData().put(bp.getUniqueId(), data);
+            PlayerData oldData = getPlayerData().put(bp.getUniqueId(), data);
+
+            if (oldData != null) {
+                oldData.setRemoved();
+            }
 
             ServerPlayer p = ((CraftPlayer) bp).getHandle();
             var playerChunkManager = p.serverLevel().getChunkSource().chunkMap.level.moonrise$getPlayerChunkLoader();
@@ -250,7 +334,7 @@ public final class RayTraceAntiXray extends JavaPlugin {
         this.timingsEnabled = timingsEnabled;
     }
 
-    public ConcurrentMap<ClientboundLevelChunkWithLightPacket, ChunkBlocks> getPacketChunkBlocksCache() {
+    public ConcurrentMap<ClientboundLevelChunkWithLightPacket, ChunkBlocksIndex> getPacketChunkBlocksCache() {
         return packetChunkBlocksCache;
     }
 
@@ -262,10 +346,55 @@ public final class RayTraceAntiXray extends JavaPlugin {
         return executorService;
     }
 
+    public long getRayTraceBudget() {
+        // The budget is a fraction of the current interval if it's adaptive.
+        return adaptiveCadence == null ? rayTraceBudget : (long) (adaptiveCadence.getInterval() * rayTraceBudgetFraction);
+    }
+
+    public long getPlayerTraceBudget() {
+        return playerTraceBudget;
+    }
+
+    public int getNearChunkRadius() {
+        return nearChunkRadius;
+    }
+
+    public long getRayTraceDeadline() {
+        return rayTraceDeadline;
+    }
+
+    public void setRayTraceDeadline(long rayTraceDeadline) {
+        this.rayTraceDeadline = rayTraceDeadline;
+    }
+
+    public long getRayTraceTick() {
+        return rayTraceTick;
+    }
+
+    public void setRayTraceTick(long rayTraceTick) {
+        this.rayTraceTick = rayTraceTick;
+    }
+
+    public long getRayTraceInterval() {
+        return adaptiveCadence == null ? rayTraceInterval : adaptiveCadence.getInterval();
+    }
+
+    public boolean isPipelinedScheduling() {
+        return pipelinedScheduling;
+    }
+
+    public int getForkJoinChunks() {
+        return forkJoinChunks;
+    }
+
     public long getUpdateTicks() {
         return updateTicks;
     }
 
+    public AdaptiveCadence getAdaptiveCadence() {
+        return adaptiveCadence;
+    }
+
     public boolean isEnabled(World world) {
         AntiXray antiXray = ((CraftWorld) world).getHandle().paperConfig().anticheat.antiXray;
 
@@ -5,7 +5,7 @@ import com.destroystokyo.paper.antixray.BitStorageWriter;
 import com.destroystokyo.paper.antixray.ChunkPacketBlockController;
 import com.destroystokyo.paper.antixray.ChunkPacketInfo;
 import com.vanillage.raytraceantixray.RayTraceAntiXray;
-import com.vanillage.raytraceantixray.data.ChunkBlocks;
+import com.vanillage.raytraceantixray.data.ChunkBlocksIndex;
 import io.papermc.paper.configuration.WorldConfiguration;
 import io.papermc.paper.configuration.type.EngineMode;
 import net.minecraft.core.BlockPos;
@@ -49,10 +49,20 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
     private final int updateRadius;
     private final boolean usePermission;
     public final boolean rayTraceThirdPerson;
+    public final double predictionTicks;
     public final double rayTraceDistance;
     public final boolean rehideBlocks;
     public final double rehideDistance;
     private final int maxRayTraceBlockCountPerChunk;
+    public final int occupancyWindowSize;
+    public final boolean specializedOcclusionCulling;
+    public final double visibilityCacheCellSize;
+    public final double incrementalDrift;
+    public final int incrementalSweepInterval;
+    public final double sharedVerdictCellSize;
+    public final boolean sectionConnectivity;
+    public final double frustumHorizontalFov;
+    public final double frustumVerticalFov;
     private final BlockState[] presetBlockStates;
     private final BlockState[] presetBlockStatesFull;
     private final BlockState[] presetBlockStatesStone;
@@ -70,8 +80,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
     private final boolean[] blockEntityGlobal = new boolean[Block.BLOCK_STATE_REGISTRY.size()];
     private final LevelChunkSection[] emptyNearbyChunkSections = {EMPTY_SECTION, EMPTY_SECTION, EMPTY_SECTION, EMPTY_SECTION};
     private final int maxBlockHeightUpdatePosition;
+    private final SolidSectionCache solidSectionCache = new SolidSectionCache(solidGlobal);
+    private final SharedVerdictCache sharedVerdictCache;
 
-    public ChunkPacketBlockControllerAntiXray(RayTraceAntiXray plugin, ChunkPacketBlockController oldController, boolean rayTraceThirdPerson, double rayTraceDistance, boolean rehideBlocks, double rehideDistance, int maxRayTraceBlockCountPerChunk, Iterable<? extends String> toTrace, Level level, Executor executor) {
+    public ChunkPacketBlockControllerAntiXray(RayTraceAntiXray plugin, ChunkPacketBlockController oldController, boolean rayTraceThirdPerson, double predictionTicks, double rayTraceDistance, boolean rehideBlocks, double rehideDistance, int maxRayTraceBlockCountPerChunk, int occupancyWindowSize, boolean specializedOcclusionCulling, double visibilityCacheCellSize, double incrementalDrift, int incrementalSweepInterval, double sharedVerdictCellSize, boolean sectionConnectivity, double frustumHorizontalFov, double frustumVerticalFov, Iterable<? extends String> toTrace, Level level, Executor executor) {
         this.plugin = plugin;
         this.oldController = oldController;
         this.executor = executor;
@@ -81,10 +93,21 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         updateRadius = paperWorldConfig.updateRadius;
         usePermission = paperWorldConfig.usePermission;
         this.rayTraceThirdPerson = rayTraceThirdPerson;
+        this.predictionTicks = predictionTicks;
         this.rayTraceDistance = rayTraceDistance;
         this.rehideBlocks = rehideBlocks;
         this.rehideDistance = rehideDistance;
         this.maxRayTraceBlockCountPerChunk = maxRayTraceBlockCountPerChunk;
+        this.occupancyWindowSize = occupancyWindowSize;
+        this.specializedOcclusionCulling = specializedOcclusionCulling;
+        this.visibilityCacheCellSize = visibilityCacheCellSize;
+        this.incrementalDrift = incrementalDrift;
+        this.incrementalSweepInterval = incrementalSweepInterval;
+        this.sharedVerdictCellSize = sharedVerdictCellSize;
+        this.sectionConnectivity = sectionConnectivity;
+        this.frustumHorizontalFov = frustumHorizontalFov;
+        this.frustumVerticalFov = frustumVerticalFov;
+        sharedVerdictCache = sharedVerdictCellSize == 0. ? null : new SharedVerdictCache(sharedVerdictCellSize);
         List<Block> toObfuscate;
 
         if (engineMode == EngineMode.HIDE) {
@@ -187,6 +210,14 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         return oldController;
     }
 
+    public SolidSectionCache getSolidSectionCache() {
+        return solidSectionCache;
+    }
+
+    public SharedVerdictCache getSharedVerdictCache() {
+        return sharedVerdictCache;
+    }
+
     private int getPresetBlockStatesFullLength() {
         return engineMode == EngineMode.HIDE ? 1 : presetBlockStatesFull.length;
     }
@@ -344,7 +375,7 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
                 return (int) ((Integer.toUnsignedLong(state) * numberOfBlocks) >>> 32);
             }
         };
-        HashMap<BlockPos, Boolean> blocks = new HashMap<>();
+        ChunkBlocksIndex.Builder blocks = new ChunkBlocksIndex.Builder(chunk.getMinSection() << 4);
         HashSet<BlockPos> blockEntities = new HashSet<>();
 
         for (int chunkSectionIndex = 0; chunkSectionIndex <= maxChunkSectionIndex; chunkSectionIndex++) {
@@ -466,7 +497,7 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         }
 
         if (plugin.isRunning()) {
-            plugin.getPacketChunkBlocksCache().put(chunkPacketInfoAntiXray.getChunkPacket(), new ChunkBlocks(chunkPacketInfoAntiXray.getChunk(), blocks));
+            plugin.getPacketChunkBlocksCache().put(chunkPacketInfoAntiXray.getChunkPacket(), blocks.build(chunkPacketInfoAntiXray.getChunk()));
         }
 
         if (!blockEntities.isEmpty()) {
@@ -494,7 +525,7 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         chunkPacketInfoAntiXray.getChunkPacket().setReady(true);
     }
 
-    private void obfuscateLayer(ChunkPos chunkPos, int minSection, int chunkSectionIndex, int y, BitStorageReader bitStorageReader, BitStorageWriter bitStorageWriter, boolean[] solid, boolean[] obfuscate, boolean[] trace, boolean[] blockEntity, int[] presetBlockStateBits, boolean[][] current, boolean[][] next, boolean[][] nextNext, boolean[][] traceCache, boolean[][] blockEntityCache, LevelChunkSection[] nearbyChunkSections, IntSupplier random, Map<? super BlockPos, ? super Boolean> blocks, Set<? super BlockPos> blockEntities) {
+    private void obfuscateLayer(ChunkPos chunkPos, int minSection, int chunkSectionIndex, int y, BitStorageReader bitStorageReader, BitStorageWriter bitStorageWriter, boolean[] solid, boolean[] obfuscate, boolean[] trace, boolean[] blockEntity, int[] presetBlockStateBits, boolean[][] current, boolean[][] next, boolean[][] nextNext, boolean[][] traceCache, boolean[][] blockEntityCache, LevelChunkSection[] nearbyChunkSections, IntSupplier random, ChunkBlocksIndex.Builder blocks, Set<? super BlockPos> blockEntities) {
         int minX = chunkPos.getMinBlockX();
         int minZ = chunkPos.getMinBlockZ();
         int realY = (chunkSectionIndex + minSection << 4) + y;
@@ -504,11 +535,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         if (nextNext[0][0] = !solid[bits]) {
             if (traceCache[0][0] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                 bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                BlockPos block = new BlockPos(minX + 0, realY, minZ + 0);
-                blocks.put(block, true);
+                blocks.add(0, realY, 0);
 
                 if (blockEntityCache[0][0]) {
-                    blockEntities.add(block);
+                    blockEntities.add(new BlockPos(minX + 0, realY, minZ + 0));
                 }
             } else {
                 bitStorageWriter.skip();
@@ -520,11 +550,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (current[0][0] || isTransparent(nearbyChunkSections[2], 0, y, 15) || isTransparent(nearbyChunkSections[0], 15, y, 0)) {
                 if (traceCache[0][0] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + 0, realY, minZ + 0);
-                    blocks.put(block, true);
+                    blocks.add(0, realY, 0);
 
                     if (blockEntityCache[0][0]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + 0, realY, minZ + 0));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -558,11 +587,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (nextNext[0][x] = !solid[bits]) {
                 if (traceCache[0][x] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + x, realY, minZ + 0);
-                    blocks.put(block, true);
+                    blocks.add(x, realY, 0);
 
                     if (blockEntityCache[0][x]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + x, realY, minZ + 0));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -575,11 +603,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
                 if (current[0][x] || isTransparent(nearbyChunkSections[2], x, y, 15)) {
                     if (traceCache[0][x] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                         bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                        BlockPos block = new BlockPos(minX + x, realY, minZ + 0);
-                        blocks.put(block, true);
+                        blocks.add(x, realY, 0);
 
                         if (blockEntityCache[0][x]) {
-                            blockEntities.add(block);
+                            blockEntities.add(new BlockPos(minX + x, realY, minZ + 0));
                         }
                     } else {
                         bitStorageWriter.skip();
@@ -613,11 +640,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         if (nextNext[0][15] = !solid[bits]) {
             if (traceCache[0][15] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                 bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                BlockPos block = new BlockPos(minX + 15, realY, minZ + 0);
-                blocks.put(block, true);
+                blocks.add(15, realY, 0);
 
                 if (blockEntityCache[0][15]) {
-                    blockEntities.add(block);
+                    blockEntities.add(new BlockPos(minX + 15, realY, minZ + 0));
                 }
             } else {
                 bitStorageWriter.skip();
@@ -629,11 +655,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (current[0][15] || isTransparent(nearbyChunkSections[2], 15, y, 15) || isTransparent(nearbyChunkSections[1], 0, y, 0)) {
                 if (traceCache[0][15] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + 15, realY, minZ + 0);
-                    blocks.put(block, true);
+                    blocks.add(15, realY, 0);
 
                     if (blockEntityCache[0][15]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + 15, realY, minZ + 0));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -668,11 +693,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (nextNext[z][0] = !solid[bits]) {
                 if (traceCache[z][0] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + 0, realY, minZ + z);
-                    blocks.put(block, true);
+                    blocks.add(0, realY, z);
 
                     if (blockEntityCache[z][0]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + 0, realY, minZ + z));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -685,11 +709,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
                 if (current[z][0] || isTransparent(nearbyChunkSections[0], 15, y, z)) {
                     if (traceCache[z][0] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                         bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                        BlockPos block = new BlockPos(minX + 0, realY, minZ + z);
-                        blocks.put(block, true);
+                        blocks.add(0, realY, z);
 
                         if (blockEntityCache[z][0]) {
-                            blockEntities.add(block);
+                            blockEntities.add(new BlockPos(minX + 0, realY, minZ + z));
                         }
                     } else {
                         bitStorageWriter.skip();
@@ -723,11 +746,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
                 if (nextNext[z][x] = !solid[bits]) {
                     if (traceCache[z][x] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                         bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                        BlockPos block = new BlockPos(minX + x, realY, minZ + z);
-                        blocks.put(block, true);
+                        blocks.add(x, realY, z);
 
                         if (blockEntityCache[z][x]) {
-                            blockEntities.add(block);
+                            blockEntities.add(new BlockPos(minX + x, realY, minZ + z));
                         }
                     } else {
                         bitStorageWriter.skip();
@@ -741,11 +763,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
                     if (current[z][x]) {
                         if (traceCache[z][x] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                             bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                            BlockPos block = new BlockPos(minX + x, realY, minZ + z);
-                            blocks.put(block, true);
+                            blocks.add(x, realY, z);
 
                             if (blockEntityCache[z][x]) {
-                                blockEntities.add(block);
+                                blockEntities.add(new BlockPos(minX + x, realY, minZ + z));
                             }
                         } else {
                             bitStorageWriter.skip();
@@ -779,11 +800,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (nextNext[z][15] = !solid[bits]) {
                 if (traceCache[z][15] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + 15, realY, minZ + z);
-                    blocks.put(block, true);
+                    blocks.add(15, realY, z);
 
                     if (blockEntityCache[z][15]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + 15, realY, minZ + z));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -796,11 +816,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
                 if (current[z][15] || isTransparent(nearbyChunkSections[1], 0, y, z)) {
                     if (traceCache[z][15] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                         bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                        BlockPos block = new BlockPos(minX + 15, realY, minZ + z);
-                        blocks.put(block, true);
+                        blocks.add(15, realY, z);
 
                         if (blockEntityCache[z][15]) {
-                            blockEntities.add(block);
+                            blockEntities.add(new BlockPos(minX + 15, realY, minZ + z));
                         }
                     } else {
                         bitStorageWriter.skip();
@@ -834,11 +853,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         if (nextNext[15][0] = !solid[bits]) {
             if (traceCache[15][0] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                 bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                BlockPos block = new BlockPos(minX + 0, realY, minZ + 15);
-                blocks.put(block, true);
+                blocks.add(0, realY, 15);
 
                 if (blockEntityCache[15][0]) {
-                    blockEntities.add(block);
+                    blockEntities.add(new BlockPos(minX + 0, realY, minZ + 15));
                 }
             } else {
                 bitStorageWriter.skip();
@@ -850,11 +868,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (current[15][0] || isTransparent(nearbyChunkSections[3], 0, y, 0) || isTransparent(nearbyChunkSections[0], 15, y, 15)) {
                 if (traceCache[15][0] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + 0, realY, minZ + 15);
-                    blocks.put(block, true);
+                    blocks.add(0, realY, 15);
 
                     if (blockEntityCache[15][0]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + 0, realY, minZ + 15));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -888,11 +905,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (nextNext[15][x] = !solid[bits]) {
                 if (traceCache[15][x] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + x, realY, minZ + 15);
-                    blocks.put(block, true);
+                    blocks.add(x, realY, 15);
 
                     if (blockEntityCache[15][x]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + x, realY, minZ + 15));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -905,11 +921,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
                 if (current[15][x] || isTransparent(nearbyChunkSections[3], x, y, 0)) {
                     if (traceCache[15][x] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                         bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                        BlockPos block = new BlockPos(minX + x, realY, minZ + 15);
-                        blocks.put(block, true);
+                        blocks.add(x, realY, 15);
 
                         if (blockEntityCache[15][x]) {
-                            blockEntities.add(block);
+                            blockEntities.add(new BlockPos(minX + x, realY, minZ + 15));
                         }
                     } else {
                         bitStorageWriter.skip();
@@ -943,11 +958,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         if (nextNext[15][15] = !solid[bits]) {
             if (traceCache[15][15] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                 bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                BlockPos block = new BlockPos(minX + 15, realY, minZ + 15);
-                blocks.put(block, true);
+                blocks.add(15, realY, 15);
 
                 if (blockEntityCache[15][15]) {
-                    blockEntities.add(block);
+                    blockEntities.add(new BlockPos(minX + 15, realY, minZ + 15));
                 }
             } else {
                 bitStorageWriter.skip();
@@ -959,11 +973,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
             if (current[15][15] || isTransparent(nearbyChunkSections[3], 15, y, 0) || isTransparent(nearbyChunkSections[1], 0, y, 15)) {
                 if (traceCache[15][15] && blocks.size() < maxRayTraceBlockCountPerChunk) {
                     bitStorageWriter.write(presetBlockStateBits[random.getAsInt()]); // Exposed to air
-                    BlockPos block = new BlockPos(minX + 15, realY, minZ + 15);
-                    blocks.put(block, true);
+                    blocks.add(15, realY, 15);
 
                     if (blockEntityCache[15][15]) {
-                        blockEntities.add(block);
+                        blockEntities.add(new BlockPos(minX + 15, realY, minZ + 15));
                     }
                 } else {
                     bitStorageWriter.skip();
@@ -1027,6 +1040,10 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
 
     @Override
     public void onBlockChange(Level level, BlockPos blockPos, BlockState newBlockState, BlockState oldBlockState, int flags, int maxUpdateDepth) {
+        if (oldBlockState != null && solidGlobal[GLOBAL_BLOCKSTATE_PALETTE.idFor(oldBlockState)] != solidGlobal[GLOBAL_BLOCKSTATE_PALETTE.idFor(newBlockState)]) {
+            invalidateSolidSection(level, blockPos);
+        }
+
         if (oldBlockState != null && solidGlobal[GLOBAL_BLOCKSTATE_PALETTE.idFor(oldBlockState)] && !solidGlobal[GLOBAL_BLOCKSTATE_PALETTE.idFor(newBlockState)] && blockPos.getY() <= maxBlockHeightUpdatePosition) {
             updateNearbyBlocks(level, blockPos);
         }
@@ -1039,6 +1056,20 @@ public final class ChunkPacketBlockControllerAntiXray extends ChunkPacketBlockCo
         }
     }
 
+    private void invalidateSolidSection(Level level, BlockPos blockPos) {
+        LevelChunk chunk = level.getChunkIfLoaded(blockPos.getX() >> 4, blockPos.getZ() >> 4);
+
+        if (chunk == null) {
+            return;
+        }
+
+        int sectionIndex = chunk.getSectionIndex(blockPos.getY());
+
+        if (sectionIndex >= 0 && sectionIndex < chunk.getSectionsCount()) {
+            solidSectionCache.invalidate(chunk.getSections()[sectionIndex]);
+        }
+    }
+
     private void updateNearbyBlocks(Level level, BlockPos blockPos) {
         if (updateRadius >= 2) {
             BlockPos temp = blockPos.west();
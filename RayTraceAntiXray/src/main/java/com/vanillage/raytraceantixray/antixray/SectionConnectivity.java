@@ -0,0 +1,253 @@
+package com.vanillage.raytraceantixray.antixray;
+
+import java.util.Arrays;
+
+// Immutable connectivity summary of a chunk section.
+// A block is passable if it or one of the 26 blocks around it isn't solid. Rays that pass a block whose 27 blocks are all solid are occluded (see BlockOcclusionCulling#checkNearbyBlocks).
+// The passable blocks of the section are split into 26-connected regions, rays only traverse 26-connected blocks.
+// For each region, bit (dx + 1) * 9 + (dy + 1) * 3 + dz + 1 of its touch mask is set if the region contains a block at the section border towards direction (dx, dy, dz), i.e. a ray can leave the section to the neighbour in that direction.
+// Built from the solidity snapshots of the section and its 26 neighbours. Missing neighbours are treated as non-solid, which only adds passable blocks.
+public final class SectionConnectivity {
+    public static final int SELF = 13; // Direction index of (0, 0, 0).
+    private static final int ALL_DIRECTIONS = (1 << 27) - 1 & ~(1 << SELF);
+    // Used for sections that are empty, unloaded or outside of the world.
+    public static final SectionConnectivity PASSABLE = new SectionConnectivity(null, 1, new int[] { ALL_DIRECTIONS }, null);
+    private final short[] regions; // Region of each block (same index as the bits of SolidSection) or -1 if not passable. Null if the whole section is a single region.
+    private final int regionCount;
+    private final int[] touches;
+    private final SolidSection[] sources;
+
+    private SectionConnectivity(short[] regions, int regionCount, int[] touches, SolidSection[] sources) {
+        this.regions = regions;
+        this.regionCount = regionCount;
+        this.touches = touches;
+        this.sources = sources;
+    }
+
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    // Returns the region of the block at the section relative position or -1 if it's not passable.
+    public int getRegion(int x, int y, int z) {
+        if (regions == null) {
+            return regionCount == 0 ? -1 : 0;
+        }
+
+        return regions[SolidSection.index(x, y, z)];
+    }
+
+    public int getTouches(int region) {
+        return touches[region];
+    }
+
+    // Returns false if a snapshot this summary was built from has been replaced due to a block change.
+    public boolean isCurrent() {
+        if (sources != null) {
+            for (SolidSection source : sources) {
+                if (source != null && source.isOutdated()) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Returns true if a block of the region is 26-adjacent to a block of the region of the neighbour in the given direction.
+    // Both regions must touch the border between the sections.
+    public boolean isAdjacent(int region, int direction, SectionConnectivity neighbour, int neighbourRegion) {
+        if (regions == null || neighbour.regions == null) {
+            // All blocks at the border belong to the single region.
+            return true;
+        }
+
+        int dx = direction / 9 - 1;
+        int dy = direction / 3 % 3 - 1;
+        int dz = direction % 3 - 1;
+
+        for (int y = dy > 0 ? 15 : 0; y <= (dy < 0 ? 0 : 15); y++) {
+            for (int z = dz > 0 ? 15 : 0; z <= (dz < 0 ? 0 : 15); z++) {
+                for (int x = dx > 0 ? 15 : 0; x <= (dx < 0 ? 0 : 15); x++) {
+                    if (regions[SolidSection.index(x, y, z)] != region) {
+                        continue;
+                    }
+
+                    // The blocks of the neighbour are at the opposite border in the direction axes and within one block in the other axes.
+                    for (int neighbourY = dy == 0 ? Math.max(y - 1, 0) : 15 - y; neighbourY <= (dy == 0 ? Math.min(y + 1, 15) : 15 - y); neighbourY++) {
+                        for (int neighbourZ = dz == 0 ? Math.max(z - 1, 0) : 15 - z; neighbourZ <= (dz == 0 ? Math.min(z + 1, 15) : 15 - z); neighbourZ++) {
+                            for (int neighbourX = dx == 0 ? Math.max(x - 1, 0) : 15 - x; neighbourX <= (dx == 0 ? Math.min(x + 1, 15) : 15 - x); neighbourX++) {
+                                if (neighbour.regions[SolidSection.index(neighbourX, neighbourY, neighbourZ)] == neighbourRegion) {
+                                    return true;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    public static int direction(int dx, int dy, int dz) {
+        return (dx + 1) * 9 + (dy + 1) * 3 + dz + 1;
+    }
+
+    // The sections are indexed by direction, the center section is at SELF. Null sections are treated as non-solid.
+    public static SectionConnectivity build(SolidSection[] sections) {
+        // Non-solid blocks of the section including a border of one block from the neighbours, index (y * 18 + z) * 18 + x.
+        boolean[] open = new boolean[18 * 18 * 18];
+
+        for (int y = 0; y < 18; y++) {
+            for (int z = 0; z < 18; z++) {
+                for (int x = 0; x < 18; x++) {
+                    SolidSection section = sections[(x + 15 >> 4) * 9 + (y + 15 >> 4) * 3 + (z + 15 >> 4)];
+                    open[(y * 18 + z) * 18 + x] = section == null || !SolidSection.isSolid(section.getBits(), x + 15 & 15, y + 15 & 15, z + 15 & 15);
+                }
+            }
+        }
+
+        // Separable dilation by one block in each axis.
+        boolean[] openX = new boolean[18 * 18 * 16];
+
+        for (int y = 0; y < 18; y++) {
+            for (int z = 0; z < 18; z++) {
+                int row = (y * 18 + z) * 18;
+
+                for (int x = 0; x < 16; x++) {
+                    openX[(y * 18 + z) * 16 + x] = open[row + x] || open[row + x + 1] || open[row + x + 2];
+                }
+            }
+        }
+
+        boolean[] openXZ = new boolean[18 * 16 * 16];
+
+        for (int y = 0; y < 18; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    openXZ[(y * 16 + z) * 16 + x] = openX[(y * 18 + z) * 16 + x] || openX[(y * 18 + z + 1) * 16 + x] || openX[(y * 18 + z + 2) * 16 + x];
+                }
+            }
+        }
+
+        boolean[] passable = new boolean[16 * 16 * 16]; // Same index as the bits of SolidSection.
+        int passableCount = 0;
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    boolean value = openXZ[(y * 16 + z) * 16 + x] || openXZ[((y + 1) * 16 + z) * 16 + x] || openXZ[((y + 2) * 16 + z) * 16 + x];
+                    passable[SolidSection.index(x, y, z)] = value;
+
+                    if (value) {
+                        passableCount++;
+                    }
+                }
+            }
+        }
+
+        SolidSection[] sources = sections.clone();
+
+        if (passableCount == 0) {
+            return new SectionConnectivity(null, 0, new int[0], sources);
+        }
+
+        if (passableCount == 16 * 16 * 16) {
+            return new SectionConnectivity(null, 1, new int[] { ALL_DIRECTIONS }, sources);
+        }
+
+        // Flood fill the 26-connected regions.
+        short[] regions = new short[16 * 16 * 16];
+        Arrays.fill(regions, (short) -1);
+        int[] touches = new int[16];
+        int[] queue = new int[16 * 16 * 16];
+        int regionCount = 0;
+
+        for (int start = 0; start < regions.length; start++) {
+            if (!passable[start] || regions[start] != -1) {
+                continue;
+            }
+
+            if (regionCount == touches.length) {
+                touches = Arrays.copyOf(touches, regionCount * 2);
+            }
+
+            short region = (short) regionCount++;
+            int touch = 0;
+            int head = 0;
+            int tail = 0;
+            regions[start] = region;
+            queue[tail++] = start;
+
+            while (head < tail) {
+                int index = queue[head++];
+                int x = index & 15;
+                int z = index >>> 4 & 15;
+                int y = index >>> 8;
+                touch |= getTouches(x, y, z);
+
+                for (int dy = -1; dy <= 1; dy++) {
+                    int ny = y + dy;
+
+                    if ((ny & ~15) != 0) {
+                        continue;
+                    }
+
+                    for (int dz = -1; dz <= 1; dz++) {
+                        int nz = z + dz;
+
+                        if ((nz & ~15) != 0) {
+                            continue;
+                        }
+
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int nx = x + dx;
+
+                            if ((nx & ~15) != 0) {
+                                continue;
+                            }
+
+                            int neighbour = SolidSection.index(nx, ny, nz);
+
+                            if (passable[neighbour] && regions[neighbour] == -1) {
+                                regions[neighbour] = region;
+                                queue[tail++] = neighbour;
+                            }
+                        }
+                    }
+                }
+            }
+
+            touches[region] = touch;
+        }
+
+        return new SectionConnectivity(regions, regionCount, Arrays.copyOf(touches, regionCount), sources);
+    }
+
+    // Returns the mask of the directions in which the block is at the section border.
+    private static int getTouches(int x, int y, int z) {
+        if ((x + 1 & 14) != 0 && (y + 1 & 14) != 0 && (z + 1 & 14) != 0) {
+            // Not at the border in any axis.
+            return 0;
+        }
+
+        int touches = 0;
+        int xMin = x == 0 ? -1 : 0;
+        int xMax = x == 15 ? 1 : 0;
+        int yMin = y == 0 ? -1 : 0;
+        int yMax = y == 15 ? 1 : 0;
+        int zMin = z == 0 ? -1 : 0;
+        int zMax = z == 15 ? 1 : 0;
+
+        for (int dx = xMin; dx <= xMax; dx++) {
+            for (int dy = yMin; dy <= yMax; dy++) {
+                for (int dz = zMin; dz <= zMax; dz++) {
+                    touches |= 1 << direction(dx, dy, dz);
+                }
+            }
+        }
+
+        return touches & ~(1 << SELF);
+    }
+}
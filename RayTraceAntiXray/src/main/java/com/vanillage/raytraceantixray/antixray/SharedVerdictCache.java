@@ -0,0 +1,192 @@
+package com.vanillage.raytraceantixray.antixray;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// World-level cache of ray results that is shared by players whose eyes are in the same cell, e.g. players mining together in a tunnel.
+// The shared rays are traced from the center of the cell instead of the eye of the first player, so a result doesn't depend on which player traced the block first.
+// The cells subdivide the blocks, so the cell center is always in the same block as the eyes of the players that share the cell.
+// A result only states whether the ray from the cell center to the block center is occluded, the view frustum is checked per player.
+// The results of a cell are valid for a single ray trace tick and are discarded as soon as a block is changed in the world.
+public final class SharedVerdictCache {
+    private final int subdivisions; // Cells per block edge.
+    private final ConcurrentMap<CellPos, Cell> cells = new ConcurrentHashMap<>();
+    private volatile long expiredTick;
+
+    // The cell size has to divide 1, see WorldListener.
+    public SharedVerdictCache(double cellSize) {
+        subdivisions = (int) Math.round(1. / cellSize);
+    }
+
+    public Cell getCell(double x, double y, double z, long tick, long modCount) {
+        if (expiredTick != tick) {
+            // The first access of a tick removes the cells of previous ticks. Concurrent removals are harmless.
+            expiredTick = tick;
+            cells.values().removeIf(cell -> cell.tick != tick);
+        }
+
+        // Multiplied instead of divided by the cell size, so block boundaries are cell boundaries without rounding errors.
+        int cellX = (int) Math.floor(x * subdivisions);
+        int cellY = (int) Math.floor(y * subdivisions);
+        int cellZ = (int) Math.floor(z * subdivisions);
+        return cells.compute(new CellPos(cellX, cellY, cellZ), (k, cell) -> cell == null || cell.tick != tick || cell.modCount != modCount ? new Cell(tick, modCount, (cellX + 0.5) / subdivisions, (cellY + 0.5) / subdivisions, (cellZ + 0.5) / subdivisions) : cell);
+    }
+
+    // The cell coordinates don't fit into a BlockPos key for small cell sizes.
+    private static final class CellPos {
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private CellPos(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof CellPos)) {
+                return false;
+            }
+
+            CellPos cellPos = (CellPos) o;
+            return x == cellPos.x && y == cellPos.y && z == cellPos.z;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = ((long) x * 0x9E3779B97F4A7C15L ^ (long) y) * 0x9E3779B97F4A7C15L ^ (long) z;
+            hash *= 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ hash >>> 32);
+        }
+    }
+
+    // Open addressing map from block keys (see BlockPos#asLong) to ray results.
+    // Reads are lock-free and allocation-free, writes are synchronized. Results are never removed or changed, so a reader that sees the state of a slot also sees its key.
+    public static final class Cell {
+        private static final int MIN_CAPACITY = 256;
+        private static final int EMPTY = 0;
+        private static final int OCCLUDED = 1;
+        private static final int VISIBLE = 2;
+        private final long tick;
+        private final long modCount;
+        private final double centerX;
+        private final double centerY;
+        private final double centerZ;
+        private volatile Table table = new Table(MIN_CAPACITY);
+        private int size;
+
+        private Cell(long tick, long modCount, double centerX, double centerY, double centerZ) {
+            this.tick = tick;
+            this.modCount = modCount;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.centerZ = centerZ;
+        }
+
+        // The shared rays start here.
+        public double getCenterX() {
+            return centerX;
+        }
+
+        public double getCenterY() {
+            return centerY;
+        }
+
+        public double getCenterZ() {
+            return centerZ;
+        }
+
+        // Returns 1 if the ray to the block is visible, 0 if it's occluded and -1 if there's no result yet.
+        public int get(long key) {
+            Table table = this.table;
+            long[] keys = table.keys;
+            AtomicIntegerArray states = table.states;
+            int mask = keys.length - 1;
+
+            for (int i = hash(key) & mask; ; i = i + 1 & mask) {
+                int state = states.getAcquire(i);
+
+                if (state == EMPTY) {
+                    return -1;
+                }
+
+                if (keys[i] == key) {
+                    return state == VISIBLE ? 1 : 0;
+                }
+            }
+        }
+
+        // Keeps the existing result if another player has traced the block meanwhile.
+        public synchronized void put(long key, boolean visible) {
+            Table table = this.table;
+            int i = table.find(key);
+
+            if (table.states.get(i) != EMPTY) {
+                return;
+            }
+
+            if (size + 1 > table.keys.length >>> 1) {
+                table = rebuild();
+                i = table.find(key);
+            }
+
+            table.keys[i] = key;
+            // Publishes the key too.
+            table.states.setRelease(i, visible ? VISIBLE : OCCLUDED);
+            size++;
+        }
+
+        private Table rebuild() {
+            Table oldTable = table;
+            Table table = new Table(oldTable.keys.length << 1);
+
+            for (int i = 0; i < oldTable.keys.length; i++) {
+                int state = oldTable.states.get(i);
+
+                if (state != EMPTY) {
+                    long key = oldTable.keys[i];
+                    int j = table.find(key);
+                    table.keys[j] = key;
+                    table.states.set(j, state);
+                }
+            }
+
+            this.table = table;
+            return table;
+        }
+
+        private static int hash(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ hash >>> 32);
+        }
+
+        private static final class Table {
+            private final long[] keys;
+            private final AtomicIntegerArray states;
+
+            private Table(int capacity) {
+                keys = new long[capacity];
+                states = new AtomicIntegerArray(capacity);
+            }
+
+            // Returns the slot of the key or the empty slot where it would be inserted. Only called by writers.
+            private int find(long key) {
+                int mask = keys.length - 1;
+                int i = hash(key) & mask;
+
+                while (states.get(i) != EMPTY && keys[i] != key) {
+                    i = i + 1 & mask;
+                }
+
+                return i;
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.vanillage.raytraceantixray.antixray;
+
+import java.util.Arrays;
+
+// Immutable solidity snapshot of a chunk section.
+// Bit (y << 8 | z << 4 | x) of bits is set if the block at the section relative position is solid.
+// The section is also summarized as 4x4x4 bricks of 4x4x4 blocks each. Bit (y << 4 | z << 2 | x) of emptyBricks or solidBricks is set if the brick at the section relative brick position only contains non-solid or solid blocks respectively.
+public final class SolidSection {
+    private static final long BRICK_ROWS = 0x000F000F000F000FL; // The x rows of a brick within a long of bits.
+    // Stand-ins for sections without a snapshot of their own, e.g. unloaded sections or sections that only contain air. Never outdated.
+    public static final SolidSection EMPTY = new SolidSection(new long[64], 0);
+    public static final SolidSection FULL = new SolidSection(full(), 0);
+    private final long[] bits;
+    private final int version;
+    private final long emptyBricks;
+    private final long solidBricks;
+    private volatile SectionConnectivity connectivity; // Computed lazily from this and the neighbouring snapshots.
+    private volatile boolean outdated; // Set when the snapshot is replaced due to a block change.
+
+    SolidSection(long[] bits, int version) {
+        this.bits = bits;
+        this.version = version;
+        long emptyBricks = 0L;
+        long solidBricks = 0L;
+
+        for (int brickY = 0; brickY < 4; brickY++) {
+            for (int brickZ = 0; brickZ < 4; brickZ++) {
+                for (int brickX = 0; brickX < 4; brickX++) {
+                    long mask = BRICK_ROWS << (brickX << 2);
+                    long or = 0L;
+                    long and = mask;
+
+                    for (int y = brickY << 2; y < brickY + 1 << 2; y++) {
+                        long word = bits[y << 2 | brickZ];
+                        or |= word & mask;
+                        and &= word;
+                    }
+
+                    long brick = 1L << (brickY << 4 | brickZ << 2 | brickX);
+
+                    if (or == 0L) {
+                        emptyBricks |= brick;
+                    } else if (and == mask) {
+                        solidBricks |= brick;
+                    }
+                }
+            }
+        }
+
+        this.emptyBricks = emptyBricks;
+        this.solidBricks = solidBricks;
+    }
+
+    private static long[] full() {
+        long[] bits = new long[64];
+        Arrays.fill(bits, -1L);
+        return bits;
+    }
+
+    public long[] getBits() {
+        return bits;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getEmptyBricks() {
+        return emptyBricks;
+    }
+
+    public long getSolidBricks() {
+        return solidBricks;
+    }
+
+    public SectionConnectivity getConnectivity() {
+        return connectivity;
+    }
+
+    public void setConnectivity(SectionConnectivity connectivity) {
+        this.connectivity = connectivity;
+    }
+
+    public boolean isOutdated() {
+        return outdated;
+    }
+
+    void markOutdated() {
+        outdated = true;
+    }
+
+    public boolean isEmpty() {
+        return emptyBricks == -1L;
+    }
+
+    public boolean isFull() {
+        return solidBricks == -1L;
+    }
+
+    public boolean isSolid(int x, int y, int z) {
+        return isSolid(bits, x, y, z);
+    }
+
+    public static int index(int x, int y, int z) {
+        return (y & 15) << 8 | (z & 15) << 4 | x & 15;
+    }
+
+    public static int brickIndex(int x, int y, int z) {
+        return (y & 12) << 2 | z & 12 | (x & 15) >> 2;
+    }
+
+    public static boolean isSolid(long[] bits, int x, int y, int z) {
+        int index = index(x, y, z);
+        return (bits[index >>> 6] & 1L << index) != 0L;
+    }
+}
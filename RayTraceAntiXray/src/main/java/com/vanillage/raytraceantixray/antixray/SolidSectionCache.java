@@ -0,0 +1,114 @@
+package com.vanillage.raytraceantixray.antixray;
+
+import com.google.common.collect.MapMaker;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.MissingPaletteEntryException;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// World-level cache of section solidity snapshots that is shared by all ray trace threads.
+// Snapshots are built lazily by the ray trace threads and replaced as soon as the section version is bumped by a block change.
+// Reading a snapshot is lock-free, a voxel probe is a single bit test.
+public final class SolidSectionCache {
+    private static final BlockState AIR = Blocks.AIR.defaultBlockState();
+    private final boolean[] solidGlobal;
+    // Weak keys use identity comparison and the entries are removed by the garbage collector when the section (chunk) is unloaded.
+    private final ConcurrentMap<LevelChunkSection, Entry> entries = new MapMaker().weakKeys().makeMap();
+    // Incremented on every invalidation, used to detect any solidity change in the world.
+    private final AtomicLong modCount = new AtomicLong();
+
+    public SolidSectionCache(boolean[] solidGlobal) {
+        this.solidGlobal = solidGlobal;
+    }
+
+    public SolidSection get(LevelChunkSection section) {
+        Entry entry = entries.get(section);
+
+        if (entry == null) {
+            entry = new Entry();
+            Entry previous = entries.putIfAbsent(section, entry);
+
+            if (previous != null) {
+                entry = previous;
+            }
+        }
+
+        // Read the version before building the snapshot.
+        // If the section is changed while building, the snapshot is outdated immediately and will be rebuilt on the next access.
+        int version = entry.version;
+        SolidSection solidSection = entry.solidSection;
+
+        if (solidSection == null || solidSection.getVersion() != version) {
+            solidSection = new SolidSection(build(section), version);
+            // Concurrent builders may overwrite a newer snapshot with an older one but then the version doesn't match and it's rebuilt again.
+            entry.solidSection = solidSection;
+
+            // The section has been changed while building, see #invalidate.
+            if (entry.version != version) {
+                solidSection.markOutdated();
+            }
+        }
+
+        return solidSection;
+    }
+
+    public void invalidate(LevelChunkSection section) {
+        // Also counted if there's no snapshot yet, e.g. the section only contained air so far.
+        modCount.incrementAndGet();
+        Entry entry = entries.get(section);
+
+        if (entry != null) {
+            // Block changes of a section are only made by a single thread (main thread or region thread).
+            entry.version++;
+            // Either this sees the snapshot of a concurrent builder or the builder sees the new version.
+            SolidSection solidSection = entry.solidSection;
+
+            if (solidSection != null) {
+                solidSection.markOutdated();
+            }
+        }
+    }
+
+    public long getModCount() {
+        return modCount.get();
+    }
+
+    public boolean isSolid(BlockState blockState) {
+        return solidGlobal[ChunkPacketBlockControllerAntiXray.GLOBAL_BLOCKSTATE_PALETTE.idFor(blockState)];
+    }
+
+    private long[] build(LevelChunkSection section) {
+        long[] bits = new long[64];
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    if (isSolid(getBlockState(section, x, y, z))) {
+                        int index = SolidSection.index(x, y, z);
+                        bits[index >>> 6] |= 1L << index;
+                    }
+                }
+            }
+        }
+
+        return bits;
+    }
+
+    private static BlockState getBlockState(LevelChunkSection section, int x, int y, int z) {
+        try {
+            return section.getBlockState(x, y, z);
+        } catch (MissingPaletteEntryException e) {
+            // Race condition / visibility issue / no happens-before relationship
+            // We don't care and treat the block as air
+            return AIR;
+        }
+    }
+
+    private static final class Entry {
+        private volatile int version;
+        private volatile SolidSection solidSection;
+    }
+}
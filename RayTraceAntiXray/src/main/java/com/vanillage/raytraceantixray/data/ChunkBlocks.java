@@ -1,32 +1,158 @@
 package com.vanillage.raytraceantixray.data;
 
-import java.lang.ref.Reference;
-import java.lang.ref.WeakReference;
-import java.util.Map;
+import java.util.Arrays;
 
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.level.chunk.LevelChunk;
 
+// The blocks of a chunk that are traced for a player, see ChunkBlocksIndex.
+// The state of each block (hidden or revealed) and the reusable ray results are bit sets with the same index as the blocks, so iterating allocates nothing.
+// The state is shared with the index until the first block is revealed, so players only pay for the chunks whose state actually changes.
 public final class ChunkBlocks {
-    private final Reference<LevelChunk> chunk;
-    private final LongWrapper key;
-    private final Map<BlockPos, Boolean> blocks;
+    private static final long[] NO_BITS = new long[0];
+    private final ChunkBlocksIndex blocks;
+    // Only accessed by the ray trace task of the player.
+    private long[] hidden;
+    private boolean hiddenShared = true;
+    private int tracedStamp;
+    private long[] rayVerdictsKnown = NO_BITS; // Reusable ray results of the incremental mode, allocated on first use.
+    private long[] rayVerdicts = NO_BITS;
+    private int sweep;
+    private int tracedTick;
+    private double priority;
 
-    public ChunkBlocks(LevelChunk chunk, Map<BlockPos, Boolean> blocks) {
-        this.chunk = new WeakReference<>(chunk);
-        key = new LongWrapper(chunk.getPos().toLong());
+    public ChunkBlocks(ChunkBlocksIndex blocks) {
         this.blocks = blocks;
+        hidden = blocks.getInitialHidden();
     }
 
     public LevelChunk getChunk() {
-        return chunk.get();
+        return blocks.getChunk();
     }
 
-    public LongWrapper getKey() {
-        return key;
+    public long getKey() {
+        return blocks.getKey();
     }
 
-    public Map<BlockPos, Boolean> getBlocks() {
-        return blocks;
+    public int size() {
+        return blocks.size();
+    }
+
+    public int getX(int index) {
+        return blocks.getX(index);
+    }
+
+    public int getY(int index) {
+        return blocks.getY(index);
+    }
+
+    public int getZ(int index) {
+        return blocks.getZ(index);
+    }
+
+    public BlockPos getBlockPos(int index) {
+        return blocks.getBlockPos(index);
+    }
+
+    public boolean isHidden(int index) {
+        return (hidden[index >>> 6] & 1L << index) != 0L;
+    }
+
+    public void setHidden(int index, boolean value) {
+        if (isHidden(index) == value) {
+            return;
+        }
+
+        if (hiddenShared) {
+            // Copy on write.
+            hidden = hidden.clone();
+            hiddenShared = false;
+        }
+
+        if (value) {
+            hidden[index >>> 6] |= 1L << index;
+        } else {
+            hidden[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    // Returns the index of the next hidden block from the index (inclusive) or the size if there is none.
+    public int nextHidden(int index) {
+        int wordIndex = index >>> 6;
+
+        if (wordIndex >= hidden.length) {
+            return size();
+        }
+
+        long word = hidden[wordIndex] & -1L << index;
+
+        while (word == 0L) {
+            if (++wordIndex == hidden.length) {
+                return size();
+            }
+
+            word = hidden[wordIndex];
+        }
+
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    public int getTracedStamp() {
+        return tracedStamp;
+    }
+
+    public void setTracedStamp(int tracedStamp) {
+        this.tracedStamp = tracedStamp;
+    }
+
+    public boolean hasRayVerdict(int index) {
+        return (rayVerdictsKnown[index >>> 6] & 1L << index) != 0L;
+    }
+
+    public boolean getRayVerdict(int index) {
+        return (rayVerdicts[index >>> 6] & 1L << index) != 0L;
+    }
+
+    public void setRayVerdict(int index, boolean verdict) {
+        rayVerdictsKnown[index >>> 6] |= 1L << index;
+
+        if (verdict) {
+            rayVerdicts[index >>> 6] |= 1L << index;
+        } else {
+            rayVerdicts[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    public void clearRayVerdicts() {
+        if (rayVerdictsKnown.length == hidden.length) {
+            Arrays.fill(rayVerdictsKnown, 0L);
+        } else {
+            rayVerdictsKnown = new long[hidden.length];
+            rayVerdicts = new long[hidden.length];
+        }
+    }
+
+    public int getSweep() {
+        return sweep;
+    }
+
+    public void setSweep(int sweep) {
+        this.sweep = sweep;
+    }
+
+    public int getTracedTick() {
+        return tracedTick;
+    }
+
+    public void setTracedTick(int tracedTick) {
+        this.tracedTick = tracedTick;
+    }
+
+    public double getPriority() {
+        return priority;
+    }
+
+    public void setPriority(double priority) {
+        this.priority = priority;
     }
 }
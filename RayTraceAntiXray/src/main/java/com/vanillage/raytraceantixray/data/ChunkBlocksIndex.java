@@ -0,0 +1,108 @@
+package com.vanillage.raytraceantixray.data;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+// Immutable blocks of a chunk packet that are traced, stored as a sorted array of packed chunk relative positions ((y - minY) << 8 | z << 4 | x).
+// Shared by all players the chunk packet is sent to, each player only holds the state of the blocks (see ChunkBlocks).
+public final class ChunkBlocksIndex {
+    private final Reference<LevelChunk> chunk;
+    private final long key;
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int[] blocks;
+    private final long[] initialHidden; // All blocks hidden, never modified.
+
+    private ChunkBlocksIndex(LevelChunk chunk, int[] blocks) {
+        this.chunk = new WeakReference<>(chunk);
+        ChunkPos chunkPos = chunk.getPos();
+        key = chunkPos.toLong();
+        minX = chunkPos.getMinBlockX();
+        minY = chunk.getMinSection() << 4;
+        minZ = chunkPos.getMinBlockZ();
+        this.blocks = blocks;
+        initialHidden = new long[blocks.length + 63 >>> 6];
+
+        for (int i = 0; i < blocks.length; i++) {
+            initialHidden[i >>> 6] |= 1L << i;
+        }
+    }
+
+    public LevelChunk getChunk() {
+        return chunk.get();
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public int size() {
+        return blocks.length;
+    }
+
+    public int getX(int index) {
+        return minX + (blocks[index] & 15);
+    }
+
+    public int getY(int index) {
+        return minY + (blocks[index] >>> 8);
+    }
+
+    public int getZ(int index) {
+        return minZ + (blocks[index] >>> 4 & 15);
+    }
+
+    public BlockPos getBlockPos(int index) {
+        return new BlockPos(getX(index), getY(index), getZ(index));
+    }
+
+    // Must be copied before it's modified.
+    long[] getInitialHidden() {
+        return initialHidden;
+    }
+
+    // Collects the blocks of a chunk during obfuscation.
+    public static final class Builder {
+        private final int minY;
+        private int[] blocks = new int[64];
+        private int size;
+
+        public Builder(int minY) {
+            this.minY = minY;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // The x and z coordinates are chunk relative, the y coordinate isn't.
+        public void add(int x, int y, int z) {
+            if (size == blocks.length) {
+                blocks = Arrays.copyOf(blocks, size * 2);
+            }
+
+            blocks[size++] = y - minY << 8 | z << 4 | x;
+        }
+
+        public ChunkBlocksIndex build(LevelChunk chunk) {
+            int[] blocks = Arrays.copyOf(this.blocks, size);
+            // The blocks are added layer by layer, so they are usually sorted already.
+            Arrays.sort(blocks);
+            int size = 0;
+
+            for (int i = 0; i < blocks.length; i++) {
+                if (i == 0 || blocks[i] != blocks[i - 1]) {
+                    blocks[size++] = blocks[i];
+                }
+            }
+
+            return new ChunkBlocksIndex(chunk, size == blocks.length ? blocks : Arrays.copyOf(blocks, size));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.vanillage.raytraceantixray.data;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Open addressing map from chunk keys (see ChunkPos#asLong) to the chunk blocks of a player.
+// Reads are lock-free and allocation-free, writes are rare (chunk packets, chunk unloads) and synchronized.
+// A slot keeps its key until the table is rebuilt, removed entries leave a tombstone that is reused if the same chunk is sent again.
+// Thus a reader that sees a value in a slot also sees the key of that slot.
+public final class ChunkBlocksMap implements Iterable<ChunkBlocks> {
+    private static final Object TOMBSTONE = new Object();
+    private static final int MIN_CAPACITY = 16;
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile int size;
+    private volatile long modCount; // Incremented by every put and remove, so readers can detect replaced chunks too.
+    private int used; // Slots that aren't empty, including tombstones.
+
+    public ChunkBlocks get(long key) {
+        Table table = this.table;
+        long[] keys = table.keys;
+        AtomicReferenceArray<Object> values = table.values;
+        int mask = keys.length - 1;
+
+        for (int i = hash(key) & mask; ; i = i + 1 & mask) {
+            Object value = values.getAcquire(i);
+
+            if (value == null) {
+                return null;
+            }
+
+            if (keys[i] == key) {
+                return value == TOMBSTONE ? null : (ChunkBlocks) value;
+            }
+        }
+    }
+
+    public synchronized ChunkBlocks put(long key, ChunkBlocks chunkBlocks) {
+        Table table = this.table;
+        int i = table.find(key);
+        Object value = table.values.get(i);
+
+        if (value == null) {
+            if (used + 1 > table.keys.length >>> 1) {
+                table = rebuild(size + 1);
+                i = table.find(key);
+            }
+
+            table.keys[i] = key;
+            used++;
+        }
+
+        // Publishes the key too.
+        table.values.setRelease(i, chunkBlocks);
+        modCount++;
+
+        if (value == null || value == TOMBSTONE) {
+            size++;
+            return null;
+        }
+
+        return (ChunkBlocks) value;
+    }
+
+    public synchronized ChunkBlocks remove(long key) {
+        Table table = this.table;
+        int i = table.find(key);
+        Object value = table.values.get(i);
+
+        if (value == null || value == TOMBSTONE) {
+            return null;
+        }
+
+        table.values.setRelease(i, TOMBSTONE);
+        size--;
+        modCount++;
+        return (ChunkBlocks) value;
+    }
+
+    // Only removes the entry if it's still mapped to the chunk blocks.
+    public synchronized boolean remove(long key, ChunkBlocks chunkBlocks) {
+        Table table = this.table;
+        int i = table.find(key);
+
+        if (table.values.get(i) != chunkBlocks || chunkBlocks == null) {
+            return false;
+        }
+
+        table.values.setRelease(i, TOMBSTONE);
+        size--;
+        modCount++;
+        return true;
+    }
+
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+        modCount++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getModCount() {
+        return modCount;
+    }
+
+    // Weakly consistent like the iterators of the concurrent collections.
+    @Override
+    public Iterator<ChunkBlocks> iterator() {
+        AtomicReferenceArray<Object> values = table.values;
+        return new Iterator<>() {
+            private int index;
+            private ChunkBlocks next = advance();
+
+            private ChunkBlocks advance() {
+                while (index < values.length()) {
+                    Object value = values.getAcquire(index++);
+
+                    if (value != null && value != TOMBSTONE) {
+                        return (ChunkBlocks) value;
+                    }
+                }
+
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ChunkBlocks next() {
+                ChunkBlocks chunkBlocks = next;
+
+                if (chunkBlocks == null) {
+                    throw new NoSuchElementException();
+                }
+
+                next = advance();
+                return chunkBlocks;
+            }
+        };
+    }
+
+    // Rebuilds the table without tombstones, with at most a quarter of the slots used.
+    private Table rebuild(int minSize) {
+        Table oldTable = table;
+        int capacity = MIN_CAPACITY;
+
+        while (capacity < minSize * 4) {
+            capacity <<= 1;
+        }
+
+        Table table = new Table(capacity);
+
+        for (int i = 0; i < oldTable.keys.length; i++) {
+            Object value = oldTable.values.get(i);
+
+            if (value != null && value != TOMBSTONE) {
+                long key = oldTable.keys[i];
+                int j = table.find(key);
+                table.keys[j] = key;
+                table.values.set(j, value);
+            }
+        }
+
+        used = size;
+        this.table = table;
+        return table;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final AtomicReferenceArray<Object> values;
+
+        private Table(int capacity) {
+            keys = new long[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+        }
+
+        // Returns the slot of the key or the empty slot where it would be inserted. Only called by writers.
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+
+            while (values.get(i) != null && keys[i] != key) {
+                i = i + 1 & mask;
+            }
+
+            return i;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.vanillage.raytraceantixray.data;
+
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Eye locations of a player as primitives (x, y, z, direction x, direction y, direction z), written by the update task and read by the ray trace threads.
+// Double-buffered: the writer fills the back buffer and then flips the buffers, so readers only retry if the buffer they copy is overwritten meanwhile (see seqlock).
+// The sequence number only changes if the locations have changed, so readers compare it instead of the locations. Neither side allocates.
+public final class EyeSnapshot {
+    public static final int MAX_LOCATIONS = 4; // The eye, the two third person cameras and the predicted eye.
+    private static final int STRIDE = 6;
+    private static final double EPSILON = 0.000001; // Same as Vector#equals.
+    private final Reference<World> world; // Player data instances are renewed on world changes.
+    private final double[][] buffers = new double[2][MAX_LOCATIONS * STRIDE];
+    private final int[] counts = new int[2];
+    private final AtomicLongArray versions = new AtomicLongArray(2); // Odd while the buffer is written.
+    private volatile long sequence; // The front buffer is sequence & 1.
+    // Only accessed by the writer.
+    private final double[] staging = new double[MAX_LOCATIONS * STRIDE];
+    private int stagingCount;
+
+    public EyeSnapshot(World world) {
+        this.world = new WeakReference<>(world);
+    }
+
+    public World getWorld() {
+        return world.get();
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Starts writing new locations, only called by the writer.
+    public void begin() {
+        stagingCount = 0;
+    }
+
+    public void add(double x, double y, double z, double directionX, double directionY, double directionZ) {
+        if (stagingCount == MAX_LOCATIONS) {
+            throw new IllegalStateException("Too many locations");
+        }
+
+        int offset = stagingCount++ * STRIDE;
+        staging[offset] = x;
+        staging[offset + 1] = y;
+        staging[offset + 2] = z;
+        staging[offset + 3] = directionX;
+        staging[offset + 4] = directionY;
+        staging[offset + 5] = directionZ;
+    }
+
+    public void add(VectorialLocation location) {
+        Vector vector = location.getVector();
+        Vector direction = location.getDirection();
+        add(vector.getX(), vector.getY(), vector.getZ(), direction.getX(), direction.getY(), direction.getZ());
+    }
+
+    // Publishes the added locations. Returns false and keeps the sequence number if they are the same as the current ones.
+    public boolean publish() {
+        long sequence = this.sequence;
+        int front = (int) sequence & 1;
+
+        // The writer is the only one modifying the buffers, so it can read the front buffer without validation.
+        if (counts[front] == stagingCount && equals(buffers[front], staging, stagingCount * STRIDE)) {
+            return false;
+        }
+
+        int back = front ^ 1;
+        long version = versions.get(back);
+        versions.set(back, version + 1L);
+        VarHandle.storeStoreFence();
+        System.arraycopy(staging, 0, buffers[back], 0, stagingCount * STRIDE);
+        counts[back] = stagingCount;
+        versions.setRelease(back, version + 2L);
+        this.sequence = sequence + 1L;
+        return true;
+    }
+
+    // Copies the current locations to the reader.
+    public void read(Reader reader) {
+        while (true) {
+            long sequence = this.sequence;
+            int front = (int) sequence & 1;
+            long version = versions.getAcquire(front);
+
+            if ((version & 1L) == 0L) {
+                // Possibly torn until validated below, bound it to the array size.
+                int count = Math.min(counts[front], MAX_LOCATIONS);
+                double[] buffer = buffers[front];
+
+                for (int i = 0; i < count; i++) {
+                    int offset = i * STRIDE;
+                    VectorialLocation location = reader.locations[count - 1][i];
+                    location.getVector().setX(buffer[offset]).setY(buffer[offset + 1]).setZ(buffer[offset + 2]);
+                    location.getDirection().setX(buffer[offset + 3]).setY(buffer[offset + 4]).setZ(buffer[offset + 5]);
+                }
+
+                VarHandle.loadLoadFence();
+
+                if (versions.get(front) == version && count != 0) {
+                    // If the writer has flipped the buffers twice in the meantime, the locations are newer than the sequence number, which only causes another read.
+                    reader.count = count;
+                    reader.sequence = sequence;
+                    return;
+                }
+            }
+
+            Thread.onSpinWait();
+        }
+    }
+
+    private static boolean equals(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (Math.abs(a[i] - b[i]) >= EPSILON) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Copy of the locations owned by a ray trace thread. The location instances are reused.
+    public static final class Reader {
+        private final VectorialLocation[][] locations = new VectorialLocation[MAX_LOCATIONS][];
+        private int count;
+        private long sequence = -1L;
+
+        public Reader(World world) {
+            for (int i = 0; i < MAX_LOCATIONS; i++) {
+                locations[i] = new VectorialLocation[i + 1];
+
+                for (int j = 0; j <= i; j++) {
+                    locations[i][j] = new VectorialLocation(world, new Vector(), new Vector());
+                }
+            }
+        }
+
+        // The sequence number of the locations, -1 if nothing has been read yet.
+        public long getSequence() {
+            return sequence;
+        }
+
+        public VectorialLocation[] getLocations() {
+            return locations[count - 1];
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.vanillage.raytraceantixray.data;
+
+import com.vanillage.raytraceantixray.antixray.SolidSection;
+
+import java.util.Arrays;
+
+// Bit-packed solidity window around the player's eye, stored as a toroidal buffer of whole sections.
+// Sections are addressed by their coordinates modulo the window size.
+// Thus moving the window only replaces the sections that have scrolled into it and a voxel probe is pure index arithmetic.
+// Sections within the window are only looked up again if their snapshot is outdated or if the chunks of the player have changed.
+public final class OccupancyWindow {
+    private static final long NO_SECTION = Long.MIN_VALUE;
+    private final int shift;
+    private final int mask;
+    private final long[] keys;
+    private final SolidSection[] sections;
+    private final long[] bits;
+    private boolean initialized;
+    private int minSectionX;
+    private int minSectionY;
+    private int minSectionZ;
+    private long chunksModCount;
+    private long solidModCount;
+    private long hits;
+    private long misses;
+
+    public OccupancyWindow(int sizeInSections) {
+        // Round up to a power of two.
+        shift = 32 - Integer.numberOfLeadingZeros(Math.max(sizeInSections, 1) - 1);
+        mask = (1 << shift) - 1;
+        int slots = 1 << shift * 3;
+        keys = new long[slots];
+        Arrays.fill(keys, NO_SECTION);
+        sections = new SolidSection[slots];
+        bits = new long[slots << 6];
+    }
+
+    public int getSizeInSections() {
+        return mask + 1;
+    }
+
+    // The mod counts of the chunks of the player and of the solid section cache must be read before the window is updated.
+    // Changes made during the update are then detected on the next update.
+    public void update(int sectionX, int sectionY, int sectionZ, long chunksModCount, long solidModCount, SectionSource sectionSource) {
+        int size = mask + 1;
+        int minSectionX = sectionX - (size >> 1);
+        int minSectionY = sectionY - (size >> 1);
+        int minSectionZ = sectionZ - (size >> 1);
+
+        if (!initialized || chunksModCount != this.chunksModCount || Math.abs(minSectionX - this.minSectionX) >= size || Math.abs(minSectionY - this.minSectionY) >= size || Math.abs(minSectionZ - this.minSectionZ) >= size) {
+            // Chunks that have been loaded or unloaded aren't tracked per section.
+            update(minSectionX, minSectionY, minSectionZ, minSectionX + size, minSectionY + size, minSectionZ + size, false, sectionSource);
+        } else {
+            // The slabs that have scrolled into the window. The corners of the slabs are visited more than once but only copied once.
+            if (minSectionX != this.minSectionX) {
+                int fromX = minSectionX < this.minSectionX ? minSectionX : this.minSectionX + size;
+                int toX = minSectionX < this.minSectionX ? this.minSectionX : minSectionX + size;
+                update(fromX, minSectionY, minSectionZ, toX, minSectionY + size, minSectionZ + size, false, sectionSource);
+            }
+
+            if (minSectionY != this.minSectionY) {
+                int fromY = minSectionY < this.minSectionY ? minSectionY : this.minSectionY + size;
+                int toY = minSectionY < this.minSectionY ? this.minSectionY : minSectionY + size;
+                update(minSectionX, fromY, minSectionZ, minSectionX + size, toY, minSectionZ + size, false, sectionSource);
+            }
+
+            if (minSectionZ != this.minSectionZ) {
+                int fromZ = minSectionZ < this.minSectionZ ? minSectionZ : this.minSectionZ + size;
+                int toZ = minSectionZ < this.minSectionZ ? this.minSectionZ : minSectionZ + size;
+                update(minSectionX, minSectionY, fromZ, minSectionX + size, minSectionY + size, toZ, false, sectionSource);
+            }
+
+            if (solidModCount != this.solidModCount) {
+                update(minSectionX, minSectionY, minSectionZ, minSectionX + size, minSectionY + size, minSectionZ + size, true, sectionSource);
+            }
+        }
+
+        initialized = true;
+        this.minSectionX = minSectionX;
+        this.minSectionY = minSectionY;
+        this.minSectionZ = minSectionZ;
+        this.chunksModCount = chunksModCount;
+        this.solidModCount = solidModCount;
+    }
+
+    // Only looks up the sections whose snapshot is outdated if onlyOutdated is true.
+    // Sections without a snapshot of their own (only air) can get blocks without a new snapshot, so they are looked up too.
+    private void update(int fromX, int fromY, int fromZ, int toX, int toY, int toZ, boolean onlyOutdated, SectionSource sectionSource) {
+        for (int y = fromY; y < toY; y++) {
+            for (int z = fromZ; z < toZ; z++) {
+                for (int x = fromX; x < toX; x++) {
+                    int slot = slot(x, y, z);
+                    SolidSection section = sections[slot];
+
+                    if (onlyOutdated && section != null && section != SolidSection.EMPTY && section != SolidSection.FULL && !section.isOutdated()) {
+                        continue;
+                    }
+
+                    long key = key(x, y, z);
+                    section = sectionSource.getSection(x, y, z);
+
+                    // Snapshots are immutable, so the identity tells us whether the section has changed.
+                    if (keys[slot] != key || sections[slot] != section) {
+                        System.arraycopy(section.getBits(), 0, bits, slot << 6, 64);
+                        keys[slot] = key;
+                        sections[slot] = section;
+                    }
+                }
+            }
+        }
+    }
+
+    // Returns 1 if the block is occluding, 0 if it isn't and -1 if the block is outside of the window.
+    public int get(int x, int y, int z) {
+        int sectionX = x >> 4;
+        int sectionY = y >> 4;
+        int sectionZ = z >> 4;
+        int slot = slot(sectionX, sectionY, sectionZ);
+
+        if (keys[slot] != key(sectionX, sectionY, sectionZ)) {
+            misses++;
+            return -1;
+        }
+
+        hits++;
+        int index = slot << 12 | (y & 15) << 8 | (z & 15) << 4 | x & 15;
+        return (int) (bits[index >>> 6] >>> index) & 1;
+    }
+
+    public long getMemoryUsage() {
+        // Arrays only, references are counted with 4 bytes (compressed oops).
+        return bits.length * 8L + keys.length * 8L + sections.length * 4L;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public void resetStatistics() {
+        hits = 0L;
+        misses = 0L;
+    }
+
+    private int slot(int sectionX, int sectionY, int sectionZ) {
+        return ((sectionY & mask) << shift | sectionZ & mask) << shift | sectionX & mask;
+    }
+
+    private static long key(int sectionX, int sectionY, int sectionZ) {
+        return ((long) sectionX & 0x3FFFFFL) << 42 | ((long) sectionZ & 0x3FFFFFL) << 20 | (long) sectionY & 0xFFFFFL;
+    }
+
+    @FunctionalInterface
+    public interface SectionSource {
+        // Returns the snapshot of the section or SolidSection#EMPTY or SolidSection#FULL if the section has no snapshot of its own.
+        SolidSection getSection(int sectionX, int sectionY, int sectionZ);
+    }
+}
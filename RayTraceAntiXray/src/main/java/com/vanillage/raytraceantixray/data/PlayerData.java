@@ -1,34 +1,59 @@
 package com.vanillage.raytraceantixray.data;
 
-import java.util.Queue;
+import org.bukkit.World;
+
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class PlayerData implements Callable<Object> {
-    private volatile VectorialLocation[] locations;
-    private final ConcurrentMap<LongWrapper, ChunkBlocks> chunks = new ConcurrentHashMap<>();
-    private final Queue<Result> results = new ConcurrentLinkedQueue<>();
+    private static final int RESULT_BUFFER_CAPACITY = 4096; // Results that can be pending per player, more are dropped and produced again by a later ray trace.
+    private static final double USAGE_DECAY = 0.9; // Per ray trace, the usage halves after about 7 ray traces.
+    private final EyeSnapshot eye;
+    private final ChunkBlocksMap chunks = new ChunkBlocksMap();
+    private final ResultBuffer results = new ResultBuffer(RESULT_BUFFER_CAPACITY);
     private Callable<?> callable;
+    // Pipelined scheduling, see PlayerRayTraceTask.
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+    private volatile boolean removed; // Whether the player data has been removed or replaced in the player data map.
+    private volatile long nextDue = System.nanoTime();
+    private volatile long lastDuration;
+    private final AtomicLong finishedDuration = new AtomicLong(); // Maximum duration of the ray traces that have finished since the dispatcher last took it, 0 if none.
+    // Work accounting of the ray traces, written by the ray trace task of the player.
+    private volatile long lastRays;
+    private volatile long lastSteps;
+    private volatile double usage; // Exponentially decaying sum of the steps, used to trace players with less recent work first.
+    // Eye location of the last update for the movement prediction, see UpdateBukkitRunnable. Only accessed by the update task.
+    private boolean hasPreviousEye;
+    private double previousEyeX;
+    private double previousEyeY;
+    private double previousEyeZ;
+    private long previousEyeTime;
 
     public PlayerData(VectorialLocation[] locations) {
-        this.locations = locations;
+        eye = new EyeSnapshot(locations[0].getWorld());
+        eye.begin();
+
+        for (VectorialLocation location : locations) {
+            eye.add(location);
+        }
+
+        eye.publish();
     }
 
-    public VectorialLocation[] getLocations() {
-        return locations;
+    public World getWorld() {
+        return eye.getWorld();
     }
 
-    public void setLocations(VectorialLocation[] locations) {
-        this.locations = locations;
+    public EyeSnapshot getEye() {
+        return eye;
     }
 
-    public ConcurrentMap<LongWrapper, ChunkBlocks> getChunks() {
+    public ChunkBlocksMap getChunks() {
         return chunks;
     }
 
-    public Queue<Result> getResults() {
+    public ResultBuffer getResults() {
         return results;
     }
 
@@ -40,6 +65,88 @@ public final class PlayerData implements Callable<Object> {
         this.callable = callable;
     }
 
+    public AtomicBoolean getInFlight() {
+        return inFlight;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    // Called when the player data is removed or replaced in the player data map, stops the resubmission of the ray traces.
+    public void setRemoved() {
+        removed = true;
+    }
+
+    public long getNextDue() {
+        return nextDue;
+    }
+
+    public void setNextDue(long nextDue) {
+        this.nextDue = nextDue;
+    }
+
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+    // Called by the ray trace task of the player when a ray trace has finished.
+    public void setLastDuration(long lastDuration) {
+        this.lastDuration = lastDuration;
+        finishedDuration.accumulateAndGet(Math.max(lastDuration, 1L), Math::max);
+    }
+
+    // Returns the maximum duration of the ray traces that have finished since the last call or 0 if none has finished.
+    public long takeFinishedDuration() {
+        return finishedDuration.getAndSet(0L);
+    }
+
+    public long getLastRays() {
+        return lastRays;
+    }
+
+    public long getLastSteps() {
+        return lastSteps;
+    }
+
+    public double getUsage() {
+        return usage;
+    }
+
+    public void account(long rays, long steps) {
+        lastRays = rays;
+        lastSteps = steps;
+        usage = usage * USAGE_DECAY + steps;
+    }
+
+    public boolean hasPreviousEye() {
+        return hasPreviousEye;
+    }
+
+    public double getPreviousEyeX() {
+        return previousEyeX;
+    }
+
+    public double getPreviousEyeY() {
+        return previousEyeY;
+    }
+
+    public double getPreviousEyeZ() {
+        return previousEyeZ;
+    }
+
+    public long getPreviousEyeTime() {
+        return previousEyeTime;
+    }
+
+    public void setPreviousEye(double previousEyeX, double previousEyeY, double previousEyeZ, long previousEyeTime) {
+        hasPreviousEye = true;
+        this.previousEyeX = previousEyeX;
+        this.previousEyeY = previousEyeY;
+        this.previousEyeZ = previousEyeZ;
+        this.previousEyeTime = previousEyeTime;
+    }
+
     @Override
     public Object call() throws Exception {
         return callable.call();
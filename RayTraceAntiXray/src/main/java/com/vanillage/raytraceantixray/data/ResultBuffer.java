@@ -0,0 +1,87 @@
+package com.vanillage.raytraceantixray.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded ray trace results of a player, written by the ray trace threads and read by the update task on the main thread.
+// Multi-producer single-consumer ring buffer with a sequence number per slot (see Vyukov's bounded queue), so neither side allocates or locks.
+// An entry is the chunk blocks and the packed block index (index << 1 | visible).
+public final class ResultBuffer {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final ChunkBlocks[] chunkBlocks;
+    private final int[] entries;
+    private final AtomicLong tail = new AtomicLong();
+    // Only accessed by the consumer.
+    private long head;
+    private ChunkBlocks polledChunkBlocks;
+    private int polledEntry;
+
+    public ResultBuffer(int capacity) {
+        // Round up to a power of two.
+        capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        chunkBlocks = new ChunkBlocks[capacity];
+        entries = new int[capacity];
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Returns false if the buffer is full. The caller must then leave the state of the block unchanged, so the result is produced again by a later ray trace.
+    public boolean offer(ChunkBlocks chunkBlocks, int index, boolean visible) {
+        long tail;
+        int slot;
+
+        while (true) {
+            tail = this.tail.get();
+            slot = (int) tail & mask;
+            long difference = sequences.getAcquire(slot) - tail;
+
+            if (difference == 0L) {
+                if (this.tail.weakCompareAndSetVolatile(tail, tail + 1L)) {
+                    break;
+                }
+            } else if (difference < 0L) {
+                // The consumer hasn't freed the slot yet.
+                return false;
+            }
+        }
+
+        this.chunkBlocks[slot] = chunkBlocks;
+        entries[slot] = index << 1 | (visible ? 1 : 0);
+        sequences.setRelease(slot, tail + 1L);
+        return true;
+    }
+
+    // Moves to the next result, returns false if there is none. Only called by the consumer.
+    public boolean poll() {
+        int slot = (int) head & mask;
+
+        if (sequences.getAcquire(slot) != head + 1L) {
+            polledChunkBlocks = null;
+            return false;
+        }
+
+        polledChunkBlocks = chunkBlocks[slot];
+        polledEntry = entries[slot];
+        chunkBlocks[slot] = null;
+        sequences.setRelease(slot, head + mask + 1L);
+        head++;
+        return true;
+    }
+
+    public ChunkBlocks getChunkBlocks() {
+        return polledChunkBlocks;
+    }
+
+    public int getIndex() {
+        return polledEntry >>> 1;
+    }
+
+    public boolean isVisible() {
+        return (polledEntry & 1) != 0;
+    }
+}
@@ -33,7 +33,11 @@ public final class PlayerListener implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         PlayerData playerData = new PlayerData(RayTraceAntiXray.getLocations(event.getPlayer(), new VectorialLocation(event.getPlayer().getEyeLocation())));
         playerData.setCallable(new RayTraceCallable(plugin, playerData));
-        plugin.getPlayerData().put(event.getPlayer().getUniqueId(), playerData);
+        PlayerData oldPlayerData = plugin.getPlayerData().put(event.getPlayer().getUniqueId(), playerData);
+
+        if (oldPlayerData != null) {
+            oldPlayerData.setRemoved();
+        }
 
         if (BukkitUtil.IS_FOLIA) {
             event.getPlayer().getScheduler().runAtFixedRate(plugin, new UpdateBukkitRunnable(plugin, event.getPlayer()), null, 1L, plugin.getUpdateTicks());
@@ -42,7 +46,11 @@ public final class PlayerListener implements Listener {
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
-        plugin.getPlayerData().remove(event.getPlayer().getUniqueId());
+        PlayerData playerData = plugin.getPlayerData().remove(event.getPlayer().getUniqueId());
+
+        if (playerData != null) {
+            playerData.setRemoved();
+        }
     }
 
 }
@@ -41,13 +41,43 @@ public final class WorldListener implements Listener {
             FileConfiguration config = plugin.getConfig();
             String worldName = world.getName();
             boolean rayTraceThirdPerson = config.getBoolean("world-settings." + worldName + ".anti-xray.ray-trace-third-person", config.getBoolean("world-settings.default.anti-xray.ray-trace-third-person"));
+            double predictionTicks = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.prediction-ticks", config.getDouble("world-settings.default.anti-xray.prediction-ticks")), 0.);
             double rayTraceDistance = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.ray-trace-distance", config.getDouble("world-settings.default.anti-xray.ray-trace-distance")), 0.);
             boolean rehideBlocks = config.getBoolean("world-settings." + worldName + ".anti-xray.rehide-blocks", config.getBoolean("world-settings.default.anti-xray.rehide-blocks"));
             double rehideDistance = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.rehide-distance", config.getDouble("world-settings.default.anti-xray.rehide-distance")), 0.);
             int maxRayTraceBlockCountPerChunk = Math.max(config.getInt("world-settings." + worldName + ".anti-xray.max-ray-trace-block-count-per-chunk", config.getInt("world-settings.default.anti-xray.max-ray-trace-block-count-per-chunk")), 0);
+            int occupancyWindowSize = Math.max(config.getInt("world-settings." + worldName + ".anti-xray.occupancy-window-size", config.getInt("world-settings.default.anti-xray.occupancy-window-size")), 0);
+            boolean specializedOcclusionCulling = config.getBoolean("world-settings." + worldName + ".anti-xray.specialized-occlusion-culling", config.getBoolean("world-settings.default.anti-xray.specialized-occlusion-culling"));
+            double visibilityCacheCellSize = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.visibility-cache-cell-size", config.getDouble("world-settings.default.anti-xray.visibility-cache-cell-size")), 0.);
+            double incrementalDrift = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.incremental-drift", config.getDouble("world-settings.default.anti-xray.incremental-drift")), 0.);
+            int incrementalSweepInterval = Math.max(config.getInt("world-settings." + worldName + ".anti-xray.incremental-sweep-interval", config.getInt("world-settings.default.anti-xray.incremental-sweep-interval")), 1);
+            double sharedVerdictCellSize = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.shared-verdict-cell-size", config.getDouble("world-settings.default.anti-xray.shared-verdict-cell-size")), 0.);
+            boolean sectionConnectivity = config.getBoolean("world-settings." + worldName + ".anti-xray.section-connectivity", config.getBoolean("world-settings.default.anti-xray.section-connectivity"));
+            double frustumHorizontalFov = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.frustum-horizontal-fov", config.getDouble("world-settings.default.anti-xray.frustum-horizontal-fov")), 0.);
+            double frustumVerticalFov = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.frustum-vertical-fov", config.getDouble("world-settings.default.anti-xray.frustum-vertical-fov")), 0.);
+            double frustumFovEffectScale = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.frustum-fov-effect-scale", config.getDouble("world-settings.default.anti-xray.frustum-fov-effect-scale")), 1.);
+            double frustumMargin = Math.max(config.getDouble("world-settings." + worldName + ".anti-xray.frustum-margin", config.getDouble("world-settings.default.anti-xray.frustum-margin")), 0.);
+
+            // The shared verdict cells have to subdivide the blocks, so the cell center is in the same block as the eyes within the cell.
+            // At most 64 cells per block edge, so the cell coordinates of all positions within the world border fit into an int.
+            if (sharedVerdictCellSize != 0.) {
+                double validSharedVerdictCellSize = 1. / Math.min(Math.ceil(1. / sharedVerdictCellSize - 1e-9), 64.);
+
+                if (validSharedVerdictCellSize != sharedVerdictCellSize) {
+                    plugin.getLogger().warning("shared-verdict-cell-size " + sharedVerdictCellSize + " of world " + worldName + " doesn't divide 1 or is less than 1/64, using " + validSharedVerdictCellSize);
+                    sharedVerdictCellSize = validSharedVerdictCellSize;
+                }
+            }
+
+            // The effective fields of view, 0 disables the side planes.
+            if (frustumHorizontalFov != 0. && frustumVerticalFov != 0.) {
+                frustumHorizontalFov = frustumHorizontalFov * frustumFovEffectScale + 2. * frustumMargin;
+                frustumVerticalFov = frustumVerticalFov * frustumFovEffectScale + 2. * frustumMargin;
+            }
+
             List<String> rayTraceBlocks = config.getList("world-settings." + worldName + ".anti-xray.ray-trace-blocks", config.getList("world-settings.default.anti-xray.ray-trace-blocks")).stream().filter(Objects::nonNull).map(String::valueOf).collect(Collectors.toList());
             ServerLevel serverLevel = ((CraftWorld) world).getHandle();
-            ChunkPacketBlockControllerAntiXray controller = new ChunkPacketBlockControllerAntiXray(plugin, ((CraftWorld) world).getHandle().chunkPacketBlockController, rayTraceThirdPerson, rayTraceDistance, rehideBlocks, rehideDistance, maxRayTraceBlockCountPerChunk, rayTraceBlocks.isEmpty() ? null : rayTraceBlocks, serverLevel, MinecraftServer.getServer().executor);
+            ChunkPacketBlockControllerAntiXray controller = new ChunkPacketBlockControllerAntiXray(plugin, ((CraftWorld) world).getHandle().chunkPacketBlockController, rayTraceThirdPerson, predictionTicks, rayTraceDistance, rehideBlocks, rehideDistance, maxRayTraceBlockCountPerChunk, occupancyWindowSize, specializedOcclusionCulling, visibilityCacheCellSize, incrementalDrift, incrementalSweepInterval, sharedVerdictCellSize, sectionConnectivity, frustumHorizontalFov, frustumVerticalFov, rayTraceBlocks.isEmpty() ? null : rayTraceBlocks, serverLevel, MinecraftServer.getServer().executor);
 
             try {
                 Field field = Level.class.getDeclaredField("chunkPacketBlockController");
@@ -2,7 +2,7 @@ package com.vanillage.raytraceantixray.net;
 
 import com.vanillage.raytraceantixray.RayTraceAntiXray;
 import com.vanillage.raytraceantixray.data.ChunkBlocks;
-import com.vanillage.raytraceantixray.data.LongWrapper;
+import com.vanillage.raytraceantixray.data.ChunkBlocksIndex;
 import com.vanillage.raytraceantixray.data.PlayerData;
 import com.vanillage.raytraceantixray.data.VectorialLocation;
 import com.vanillage.raytraceantixray.tasks.RayTraceCallable;
@@ -17,7 +17,6 @@ import org.bukkit.Location;
 import org.bukkit.craftbukkit.CraftWorld;
 import org.bukkit.entity.Player;
 
-import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentMap;
 
@@ -62,9 +61,9 @@ public class DuplexHandlerImpl extends DuplexHandler {
             // Get the result from Anti-Xray for the current chunk packet.
             // We can't remove the entry because the same chunk packet can be sent to multiple players.
             // The garbage collector will remove the entry later since we're using a weak key map.
-            ChunkBlocks chunkBlocks = plugin.getPacketChunkBlocksCache().get(packet);
+            ChunkBlocksIndex chunkBlocksIndex = plugin.getPacketChunkBlocksCache().get(packet);
 
-            if (chunkBlocks == null) {
+            if (chunkBlocksIndex == null) {
                 // RayTraceAntiXray is probably not enabled in this world (or other plugins bypass Anti-Xray).
                 // We can't determine the world from the chunk packet in this case.
                 // Thus we use the player's current (more up to date) world instead.
@@ -72,20 +71,24 @@ public class DuplexHandlerImpl extends DuplexHandler {
                 ConcurrentMap<UUID, PlayerData> playerDataMap = plugin.getPlayerData();
                 UUID uniqueId = player.getUniqueId();
 
-                if (!location.getWorld().equals(playerDataMap.get(uniqueId).getLocations()[0].getWorld())) {
+                if (!location.getWorld().equals(playerDataMap.get(uniqueId).getWorld())) {
                     // Detected a world change.
                     // In the event order listing above, this corresponds to (4) when RayTraceAntiXray is disabled in world B.
                     // The player's current world is world B since (2).
                     PlayerData playerData = new PlayerData(RayTraceAntiXray.getLocations(player, new VectorialLocation(location)));
                     playerData.setCallable(new RayTraceCallable(plugin, playerData));
-                    playerDataMap.put(uniqueId, playerData);
+                    PlayerData oldPlayerData = playerDataMap.put(uniqueId, playerData);
+
+                    if (oldPlayerData != null) {
+                        oldPlayerData.setRemoved();
+                    }
                 }
 
                 return true;
             }
 
             // Get chunk from weak reference.
-            LevelChunk chunk = chunkBlocks.getChunk();
+            LevelChunk chunk = chunkBlocksIndex.getChunk();
 
             if (chunk == null) {
                 // The chunk has already been unloaded and garbage collected.
@@ -99,7 +102,7 @@ public class DuplexHandlerImpl extends DuplexHandler {
             UUID uniqueId = player.getUniqueId();
             PlayerData playerData = playerDataMap.get(uniqueId);
 
-            if (!world.equals(playerData.getLocations()[0].getWorld())) {
+            if (!world.equals(playerData.getWorld())) {
                 // Detected a world change.
                 // We need the player's current location to construct a new player data instance.
                 Location location = player.getEyeLocation();
@@ -120,19 +123,20 @@ public class DuplexHandlerImpl extends DuplexHandler {
                 }
 
                 // Renew the player data instance.
+                playerData.setRemoved();
                 playerData = new PlayerData(RayTraceAntiXray.getLocations(player, new VectorialLocation(location)));
                 playerData.setCallable(new RayTraceCallable(plugin, playerData));
                 playerDataMap.put(uniqueId, playerData);
             }
 
-            // We need to copy the chunk blocks because the same chunk packet could have been sent to multiple players.
-            chunkBlocks = new ChunkBlocks(chunk, new HashMap<>(chunkBlocks.getBlocks()));
+            // The same chunk packet could have been sent to multiple players, so each player gets its own state of the shared blocks.
+            ChunkBlocks chunkBlocks = new ChunkBlocks(chunkBlocksIndex);
             playerData.getChunks().put(chunkBlocks.getKey(), chunkBlocks);
         } else if (msg instanceof ClientboundForgetLevelChunkPacket packet) {
             // Note that chunk unload packets aren't sent on world change and on respawn.
             // World changes are already handled below.
             plugin.getPlayerData().get(player.getUniqueId())
-                    .getChunks().remove(new LongWrapper(packet.pos().toLong()));
+                    .getChunks().remove(packet.pos().toLong());
         } else if (msg instanceof ClientboundRespawnPacket) {
             // As with world changes, chunk unload packets aren't sent on respawn.
             // All required chunks are (re)sent afterwards.
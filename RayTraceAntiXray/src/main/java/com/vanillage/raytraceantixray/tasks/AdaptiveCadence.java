@@ -0,0 +1,115 @@
+package com.vanillage.raytraceantixray.tasks;
+
+import org.bukkit.Bukkit;
+
+import java.util.concurrent.TimeUnit;
+
+// Adapts the ray trace interval and the update ticks to the load within the configured bounds.
+// Backs off quickly if the server is behind its target MSPT or ray trace ticks take longer than the interval and speeds up slowly if there's headroom and no chunks are carried over.
+// Updated by the ray trace tick thread, read by the ray trace and update tasks.
+public final class AdaptiveCadence {
+    private static final long ADJUSTMENT_PERIOD = TimeUnit.SECONDS.toNanos(1L); // The MSPT is an average over the last 100 ticks, so it reacts slowly.
+    private static final double LOAD_SMOOTHING = 0.2;
+    private static final double BACK_OFF_FACTOR = 1.25;
+    private static final double SPEED_UP_FACTOR = 0.9;
+    private static final double MSPT_HEADROOM = 0.8;
+    private static final double LOAD_HEADROOM = 0.5;
+    private final long minInterval;
+    private final long maxInterval;
+    private final int minUpdateTicks;
+    private final int maxUpdateTicks;
+    private final double targetMspt;
+    private volatile long interval;
+    private volatile int updateTicks;
+    private long lastAdjustment = System.nanoTime();
+    private boolean msptAvailable = true;
+    // Inputs and result of the last adjustment.
+    private volatile double load; // Smoothed ratio of the ray trace duration to the interval.
+    private volatile double mspt;
+    private volatile int pendingPlayers;
+    private volatile Decision decision = Decision.HOLD;
+
+    public AdaptiveCadence(long minInterval, long maxInterval, int minUpdateTicks, int maxUpdateTicks, double targetMspt) {
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(maxInterval, minInterval);
+        this.minUpdateTicks = minUpdateTicks;
+        this.maxUpdateTicks = Math.max(maxUpdateTicks, minUpdateTicks);
+        this.targetMspt = targetMspt;
+        interval = minInterval;
+        updateTicks = minUpdateTicks;
+    }
+
+    // Called after each ray trace tick with the time it took (or the longest player ray trace if pipelined) and the number of players with carried over chunks.
+    public void update(long now, long duration, int pendingPlayers) {
+        long interval = this.interval;
+        load += ((double) duration / interval - load) * LOAD_SMOOTHING;
+        this.pendingPlayers = pendingPlayers;
+
+        if (now - lastAdjustment < ADJUSTMENT_PERIOD) {
+            return;
+        }
+
+        lastAdjustment = now;
+        double mspt = measureMspt();
+        this.mspt = mspt;
+
+        if (mspt > targetMspt || load > 1.) {
+            decision = Decision.BACK_OFF;
+            this.interval = Math.min((long) (interval * BACK_OFF_FACTOR), maxInterval);
+            updateTicks = Math.min(updateTicks + 1, maxUpdateTicks);
+        } else if (mspt < targetMspt * MSPT_HEADROOM && load < LOAD_HEADROOM && pendingPlayers == 0) {
+            decision = Decision.SPEED_UP;
+            this.interval = Math.max((long) (interval * SPEED_UP_FACTOR), minInterval);
+            updateTicks = Math.max(updateTicks - 1, minUpdateTicks);
+        } else {
+            decision = Decision.HOLD;
+        }
+    }
+
+    private double measureMspt() {
+        if (msptAvailable) {
+            try {
+                return Bukkit.getAverageTickTime();
+            } catch (UnsupportedOperationException e) {
+                // There's no global tick on Folia.
+                msptAvailable = false;
+            }
+        }
+
+        return 0.;
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public int getUpdateTicks() {
+        return updateTicks;
+    }
+
+    public double getLoad() {
+        return load;
+    }
+
+    public double getMspt() {
+        return mspt;
+    }
+
+    public int getPendingPlayers() {
+        return pendingPlayers;
+    }
+
+    public Decision getDecision() {
+        return decision;
+    }
+
+    public enum Decision {
+        BACK_OFF,
+        HOLD,
+        SPEED_UP
+    }
+}
@@ -0,0 +1,221 @@
+package com.vanillage.raytraceantixray.tasks;
+
+import com.vanillage.raytraceantixray.antixray.SolidSection;
+import com.vanillage.raytraceantixray.antixray.SolidSectionCache;
+import com.vanillage.raytraceantixray.data.ChunkBlocks;
+import com.vanillage.raytraceantixray.data.ChunkBlocksMap;
+import com.vanillage.raytraceantixray.data.OccupancyWindow;
+import com.vanillage.raytraceantixray.data.OccupancyWindow.SectionSource;
+import com.vanillage.raytraceantixray.util.BlockOcclusionCulling.BlockOcclusionGetter;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+
+
+// Occlusion getter of a single ray trace thread that caches the current chunk and section.
+// Not thread-safe, each thread that traces chunks of a player needs its own instance.
+final class CachedSectionBlockOcclusionGetter implements BlockOcclusionGetter, SectionSource {
+    private static final boolean UNLOADED_OCCLUDING = true;
+    private final ChunkBlocksMap chunks;
+    private final SolidSectionCache solidSectionCache;
+    private final OccupancyWindow occupancyWindow;
+    private LevelChunk chunk;
+    private long[] solid; // Solidity bits of the cached section.
+    private long emptyBricks;
+    private long solidBricks;
+    private int chunkX;
+    private int sectionY;
+    private int chunkZ;
+
+    CachedSectionBlockOcclusionGetter(ChunkBlocksMap chunks, SolidSectionCache solidSectionCache, OccupancyWindow occupancyWindow) {
+        this.chunks = chunks;
+        this.solidSectionCache = solidSectionCache;
+        this.occupancyWindow = occupancyWindow;
+    }
+
+    @Override
+    public boolean isOccluding(int x, int y, int z) {
+        if (occupancyWindow != null) {
+            int occluding = occupancyWindow.get(x, y, z);
+
+            if (occluding >= 0) {
+                return occluding != 0;
+            }
+        }
+
+        int chunkX = x >> 4;
+        int chunkZ = z >> 4;
+
+        if (this.chunkX != chunkX || this.chunkZ != chunkZ) {
+            ChunkBlocks chunkBlocks = chunks.get(ChunkPos.asLong(chunkX, chunkZ));
+
+            if (chunkBlocks == null) {
+                return UNLOADED_OCCLUDING;
+            }
+
+            LevelChunk chunk = chunkBlocks.getChunk();
+
+            if (chunk == null) {
+                return UNLOADED_OCCLUDING;
+            }
+
+            int sectionY = y >> 4;
+            int minSection = chunk.getMinSection();
+
+            if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
+                return false;
+            }
+
+            LevelChunkSection section = chunk.getSections()[sectionY - minSection];
+            return section != null && !section.hasOnlyAir() && SolidSection.isSolid(solidSectionCache.get(section).getBits(), x, y, z); // Sections aren't null anymore. Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
+        }
+
+        int sectionY = y >> 4;
+
+        if (this.sectionY != sectionY) {
+            if (chunk == null) {
+                return UNLOADED_OCCLUDING;
+            }
+
+            int minSection = chunk.getMinSection();
+
+            if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
+                return false;
+            }
+
+            LevelChunkSection section = chunk.getSections()[sectionY - minSection];
+            return section != null && !section.hasOnlyAir() && SolidSection.isSolid(solidSectionCache.get(section).getBits(), x, y, z); // Sections aren't null anymore. Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
+        }
+
+        if (solid == null) {
+            return chunk == null && UNLOADED_OCCLUDING;
+        }
+
+        return SolidSection.isSolid(solid, x, y, z);
+    }
+
+    @Override
+    public boolean isOccludingRay(int x, int y, int z) {
+        if (occupancyWindow != null) {
+            int occluding = occupancyWindow.get(x, y, z);
+
+            if (occluding >= 0) {
+                return occluding != 0;
+            }
+        }
+
+        moveCache(x >> 4, y >> 4, z >> 4);
+
+        if (solid == null) {
+            return chunk == null && UNLOADED_OCCLUDING;
+        }
+
+        return SolidSection.isSolid(solid, x, y, z);
+    }
+
+    @Override
+    public int getEmptyBoxShift(int x, int y, int z) {
+        moveCache(x >> 4, y >> 4, z >> 4);
+
+        if (solid == null) {
+            return chunk == null && UNLOADED_OCCLUDING ? 0 : 4;
+        }
+
+        if (emptyBricks == -1L) {
+            return 4;
+        }
+
+        return (emptyBricks & 1L << SolidSection.brickIndex(x, y, z)) == 0L ? 0 : 2;
+    }
+
+    @Override
+    public boolean isOccludingCube(int x, int y, int z) {
+        moveCache(x >> 4, y >> 4, z >> 4);
+
+        if (solid == null) {
+            // The whole chunk column is unloaded.
+            return chunk == null && UNLOADED_OCCLUDING && (x + 1 & 14) != 0 && (z + 1 & 14) != 0;
+        }
+
+        // The cube is within a solid brick if the block isn't on the brick border.
+        return (solidBricks & 1L << SolidSection.brickIndex(x, y, z)) != 0L && (x + 1 & 2) != 0 && (y + 1 & 2) != 0 && (z + 1 & 2) != 0;
+    }
+
+    private void moveCache(int chunkX, int sectionY, int chunkZ) {
+        if (this.chunkX != chunkX || this.chunkZ != chunkZ) {
+            this.chunkX = chunkX;
+            this.sectionY = sectionY;
+            this.chunkZ = chunkZ;
+            ChunkBlocks chunkBlocks = chunks.get(ChunkPos.asLong(chunkX, chunkZ));
+            chunk = chunkBlocks == null ? null : chunkBlocks.getChunk();
+        } else if (this.sectionY != sectionY) {
+            this.sectionY = sectionY;
+        } else {
+            return;
+        }
+
+        if (chunk == null) {
+            setSection(null);
+            return;
+        }
+
+        int minSection = chunk.getMinSection();
+        setSection(sectionY < minSection || sectionY >= chunk.getMaxSection() ? null : chunk.getSections()[sectionY - minSection]);
+    }
+
+    private void setSection(LevelChunkSection section) {
+        if (section == null || section.hasOnlyAir()) { // Sections aren't null anymore. Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
+            solid = null;
+            emptyBricks = -1L;
+            solidBricks = 0L;
+        } else {
+            SolidSection solidSection = solidSectionCache.get(section);
+            solid = solidSection.getBits();
+            emptyBricks = solidSection.getEmptyBricks();
+            solidBricks = solidSection.getSolidBricks();
+        }
+    }
+
+    @Override
+    public SolidSection getSection(int sectionX, int sectionY, int sectionZ) {
+        // Must be consistent with isOccludingRay.
+        ChunkBlocks chunkBlocks = chunks.get(ChunkPos.asLong(sectionX, sectionZ));
+
+        if (chunkBlocks == null) {
+            return UNLOADED_OCCLUDING ? SolidSection.FULL : SolidSection.EMPTY;
+        }
+
+        LevelChunk chunk = chunkBlocks.getChunk();
+
+        if (chunk == null) {
+            return UNLOADED_OCCLUDING ? SolidSection.FULL : SolidSection.EMPTY;
+        }
+
+        int minSection = chunk.getMinSection();
+
+        if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
+            return SolidSection.EMPTY;
+        }
+
+        LevelChunkSection section = chunk.getSections()[sectionY - minSection];
+
+        if (section == null || section.hasOnlyAir()) { // Sections aren't null anymore. Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
+            return SolidSection.EMPTY;
+        }
+
+        return solidSectionCache.get(section);
+    }
+
+    public void initializeCache(LevelChunk chunk, int chunkX, int sectionY, int chunkZ) {
+        this.chunk = chunk;
+        setSection(chunk.getSections()[sectionY - chunk.getMinSection()]);
+        this.chunkX = chunkX;
+        this.sectionY = sectionY;
+        this.chunkZ = chunkZ;
+    }
+
+    public void clearCache() {
+        chunk = null;
+        setSection(null);
+    }
+}
@@ -0,0 +1,235 @@
+package com.vanillage.raytraceantixray.tasks;
+
+import com.vanillage.raytraceantixray.antixray.SharedVerdictCache;
+import com.vanillage.raytraceantixray.data.ChunkBlocks;
+import com.vanillage.raytraceantixray.data.ResultBuffer;
+import com.vanillage.raytraceantixray.data.VectorialLocation;
+import com.vanillage.raytraceantixray.util.BlockOcclusionCulling;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.bukkit.util.Vector;
+
+// Traces the blocks of single chunks. Holds the per-thread state (occlusion getter cache and ray iterator), so each thread that traces chunks of a player needs its own instance.
+final class ChunkTracer {
+    private final CachedSectionBlockOcclusionGetter cachedSectionBlockOcclusionGetter;
+    private final BlockOcclusionCulling blockOcclusionCulling;
+    private final SpecializedBlockOcclusionCulling specializedBlockOcclusionCulling; // Null if disabled.
+    private final double rayTraceDistanceSquared;
+    private final boolean rehideBlocks;
+    private final double rehideDistanceSquared;
+    private long rays; // Number of rays cast, for accounting.
+    private boolean dropped; // Whether a result of the current chunk didn't fit into the result buffer.
+
+    ChunkTracer(CachedSectionBlockOcclusionGetter cachedSectionBlockOcclusionGetter, BlockOcclusionCulling blockOcclusionCulling, SpecializedBlockOcclusionCulling specializedBlockOcclusionCulling, double rayTraceDistanceSquared, boolean rehideBlocks, double rehideDistanceSquared) {
+        this.cachedSectionBlockOcclusionGetter = cachedSectionBlockOcclusionGetter;
+        this.blockOcclusionCulling = blockOcclusionCulling;
+        this.specializedBlockOcclusionCulling = specializedBlockOcclusionCulling;
+        this.rayTraceDistanceSquared = rayTraceDistanceSquared;
+        this.rehideBlocks = rehideBlocks;
+        this.rehideDistanceSquared = rehideDistanceSquared;
+    }
+
+    public CachedSectionBlockOcclusionGetter getCachedSectionBlockOcclusionGetter() {
+        return cachedSectionBlockOcclusionGetter;
+    }
+
+    // The sweep is 0 if incremental mode is disabled. The shared verdict cell and the potentially visible set are null if disabled.
+    // Returns false if results were dropped because the result buffer was full, the chunk has to be traced again then.
+    public boolean traceChunk(ChunkBlocks chunkBlocks, LevelChunk chunk, int chunkX, int chunkZ, VectorialLocation[] locations, double playerX, double playerY, double playerZ, ResultBuffer results, int sweep, SharedVerdictCache.Cell sharedVerdicts, PotentiallyVisibleSet potentiallyVisibleSet) {
+        dropped = false;
+
+        if (sharedVerdicts != null) {
+            int blockX = (int) Math.floor(playerX);
+            int blockY = (int) Math.floor(playerY);
+            int blockZ = (int) Math.floor(playerZ);
+
+            if ((int) Math.floor(sharedVerdicts.getCenterX()) != blockX || (int) Math.floor(sharedVerdicts.getCenterY()) != blockY || (int) Math.floor(sharedVerdicts.getCenterZ()) != blockZ) {
+                // Rays from another block could see past a wall next to the eye. Doesn't happen with valid cell sizes.
+                sharedVerdicts = null;
+            } else if (cachedSectionBlockOcclusionGetter.isOccluding(blockX, blockY, blockZ)) {
+                // Rays from a cell center within a solid block would be occluded right away.
+                sharedVerdicts = null;
+            }
+        }
+
+        boolean rayVerdicts = sweep != 0;
+
+        if (rayVerdicts && chunkBlocks.getSweep() != sweep) {
+            chunkBlocks.clearRayVerdicts();
+            chunkBlocks.setSweep(sweep);
+        }
+
+        int size = chunkBlocks.size();
+
+        for (int index = first(chunkBlocks); index < size; index = next(chunkBlocks, index)) {
+            int x = chunkBlocks.getX(index);
+            int y = chunkBlocks.getY(index);
+            int z = chunkBlocks.getZ(index);
+            double centerX = x + 0.5;
+            double centerY = y + 0.5;
+            double centerZ = z + 0.5;
+            double differenceX = playerX - centerX;
+            double differenceY = playerY - centerY;
+            double differenceZ = playerZ - centerZ;
+            double distanceSquared = differenceX * differenceX + differenceY * differenceY + differenceZ * differenceZ;
+
+            if (!(distanceSquared <= rayTraceDistanceSquared)) {
+                continue;
+            }
+
+            boolean visible = distanceSquared < rehideDistanceSquared && (potentiallyVisibleSet == null || potentiallyVisibleSet.isPotentiallyVisible(x, y, z)) && (!rayVerdicts && sharedVerdicts == null ? isVisible(locations, 0, chunk, chunkX, chunkZ, x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared) : isVisibleCached(chunkBlocks, index, rayVerdicts, sharedVerdicts, locations, chunk, chunkX, chunkZ, x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared));
+            update(chunkBlocks, index, visible, results);
+        }
+
+        return !dropped;
+    }
+
+    public void clearCache() {
+        cachedSectionBlockOcclusionGetter.clearCache();
+    }
+
+    // Total number of rays cast by this instance.
+    public long getRays() {
+        return rays;
+    }
+
+    // Total number of blocks looked up by the rays of this instance.
+    public long getSteps() {
+        return specializedBlockOcclusionCulling == null ? blockOcclusionCulling.getSteps() : blockOcclusionCulling.getSteps() + specializedBlockOcclusionCulling.getSteps();
+    }
+
+    // The differences and the distance are only used for the first location.
+    private boolean isVisible(VectorialLocation[] locations, int fromIndex, LevelChunk chunk, int chunkX, int chunkZ, int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared) {
+        int sectionY = y >> 4;
+
+        for (int i = fromIndex; i < locations.length; i++) {
+            VectorialLocation location = locations[i];
+            Vector direction = location.getDirection();
+            double directionX = direction.getX();
+            double directionY = direction.getY();
+            double directionZ = direction.getZ();
+            cachedSectionBlockOcclusionGetter.initializeCache(chunk, chunkX, sectionY, chunkZ);
+
+            if (i == 0) {
+                if (traceRay(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared, directionX, directionY, directionZ)) {
+                    return true;
+                }
+            } else {
+                Vector vector = location.getVector();
+                double vectorDifferenceX = vector.getX() - centerX;
+                double vectorDifferenceY = vector.getY() - centerY;
+                double vectorDifferenceZ = vector.getZ() - centerZ;
+
+                if (traceRay(x, y, z, centerX, centerY, centerZ, vectorDifferenceX, vectorDifferenceY, vectorDifferenceZ, vectorDifferenceX * vectorDifferenceX + vectorDifferenceY * vectorDifferenceY + vectorDifferenceZ * vectorDifferenceZ, directionX, directionY, directionZ)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // Same as isVisible but the ray result of the first location is reused within a sweep (ray verdicts) or shared with the players whose eyes are in the same cell (shared verdicts). Either may be disabled.
+    // Shared rays are traced from the cell center, the results of the ray verdicts are taken from them if shared verdicts are enabled.
+    // The frustum is checked on every call since the view direction changes much faster than the position and differs between players.
+    // Rays that passed close to an occluder edge aren't reused.
+    private boolean isVisibleCached(ChunkBlocks chunkBlocks, int index, boolean rayVerdicts, SharedVerdictCache.Cell sharedVerdicts, VectorialLocation[] locations, LevelChunk chunk, int chunkX, int chunkZ, int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared) {
+        Vector direction = locations[0].getDirection();
+        double directionX = direction.getX();
+        double directionY = direction.getY();
+        double directionZ = direction.getZ();
+
+        if (blockOcclusionCulling.isInFrustum(differenceX, differenceY, differenceZ, directionX, directionY, directionZ)) {
+            boolean verdict;
+
+            if (rayVerdicts && chunkBlocks.hasRayVerdict(index)) {
+                verdict = chunkBlocks.getRayVerdict(index);
+            } else if (sharedVerdicts == null) {
+                cachedSectionBlockOcclusionGetter.initializeCache(chunk, chunkX, y >> 4, chunkZ);
+                verdict = traceRay(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared, directionX, directionY, directionZ);
+
+                if (rayVerdicts && !isGrazing()) {
+                    chunkBlocks.setRayVerdict(index, verdict);
+                }
+            } else {
+                long key = BlockPos.asLong(x, y, z);
+                int sharedVerdict = sharedVerdicts.get(key);
+
+                if (sharedVerdict < 0) {
+                    double cellDifferenceX = sharedVerdicts.getCenterX() - centerX;
+                    double cellDifferenceY = sharedVerdicts.getCenterY() - centerY;
+                    double cellDifferenceZ = sharedVerdicts.getCenterZ() - centerZ;
+                    cachedSectionBlockOcclusionGetter.initializeCache(chunk, chunkX, y >> 4, chunkZ);
+                    // The frustum of the player has been checked above.
+                    verdict = traceUnoccludedRay(x, y, z, centerX, centerY, centerZ, cellDifferenceX, cellDifferenceY, cellDifferenceZ, cellDifferenceX * cellDifferenceX + cellDifferenceY * cellDifferenceY + cellDifferenceZ * cellDifferenceZ);
+
+                    if (!isGrazing()) {
+                        sharedVerdicts.put(key, verdict);
+
+                        if (rayVerdicts) {
+                            chunkBlocks.setRayVerdict(index, verdict);
+                        }
+                    }
+                } else {
+                    verdict = sharedVerdict != 0;
+
+                    if (rayVerdicts) {
+                        chunkBlocks.setRayVerdict(index, verdict);
+                    }
+                }
+            }
+
+            if (verdict) {
+                return true;
+            }
+        }
+
+        return locations.length > 1 && isVisible(locations, 1, chunk, chunkX, chunkZ, x, y, z, centerX, centerY, centerZ, 0., 0., 0., 0.);
+    }
+
+    private boolean traceRay(int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared, double directionX, double directionY, double directionZ) {
+        rays++;
+
+        if (specializedBlockOcclusionCulling == null) {
+            return blockOcclusionCulling.isVisible(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared, directionX, directionY, directionZ);
+        }
+
+        return specializedBlockOcclusionCulling.isVisible(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared, directionX, directionY, directionZ);
+    }
+
+    // Same as traceRay without the view frustum check, which would otherwise recompute the view basis of the player on the next ray.
+    private boolean traceUnoccludedRay(int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared) {
+        rays++;
+
+        if (specializedBlockOcclusionCulling == null) {
+            return blockOcclusionCulling.isUnoccluded(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared);
+        }
+
+        return specializedBlockOcclusionCulling.isUnoccluded(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared);
+    }
+
+    // Whether the last ray passed close to an occluder edge.
+    private boolean isGrazing() {
+        return specializedBlockOcclusionCulling == null ? blockOcclusionCulling.isGrazing() : specializedBlockOcclusionCulling.isGrazing();
+    }
+
+    // Revealed blocks are only traced again if they can be rehidden.
+    private int first(ChunkBlocks chunkBlocks) {
+        return rehideBlocks ? 0 : chunkBlocks.nextHidden(0);
+    }
+
+    private int next(ChunkBlocks chunkBlocks, int index) {
+        return rehideBlocks ? index + 1 : chunkBlocks.nextHidden(index + 1);
+    }
+
+    // The state only changes if the result fits into the buffer.
+    private void update(ChunkBlocks chunkBlocks, int index, boolean visible, ResultBuffer results) {
+        if (visible == chunkBlocks.isHidden(index)) {
+            if (results.offer(chunkBlocks, index, visible)) {
+                chunkBlocks.setHidden(index, !visible);
+            } else {
+                dropped = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.vanillage.raytraceantixray.tasks;
+
+import com.vanillage.raytraceantixray.RayTraceAntiXray;
+import com.vanillage.raytraceantixray.data.PlayerData;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+// Ray traces a single player on the ray trace thread pool without waiting for other players.
+// The player is resubmitted immediately if it's already due again when the ray trace has finished, otherwise RayTraceTimerTask submits it when it's due.
+// Player data that has been removed (quit) or replaced (world change) isn't resubmitted.
+public final class PlayerRayTraceTask implements Runnable {
+    private final RayTraceAntiXray plugin;
+    private final PlayerData playerData;
+
+    public PlayerRayTraceTask(RayTraceAntiXray plugin, PlayerData playerData) {
+        this.plugin = plugin;
+        this.playerData = playerData;
+    }
+
+    // Submits the task if the player is due and not in flight.
+    public static void submitIfDue(RayTraceAntiXray plugin, PlayerData playerData, long now) {
+        if (now - playerData.getNextDue() >= 0L && playerData.getInFlight().compareAndSet(false, true)) {
+            submit(plugin, playerData);
+        }
+    }
+
+    private static void submit(RayTraceAntiXray plugin, PlayerData playerData) {
+        try {
+            plugin.getExecutorService().execute(new PlayerRayTraceTask(plugin, playerData));
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+            playerData.getInFlight().set(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.nanoTime();
+
+        try {
+            playerData.getCallable().call();
+        } catch (Throwable t) {
+            plugin.getLogger().log(Level.SEVERE, "Error thrown while raytracing: ", t);
+        }
+
+        long endTime = System.nanoTime();
+        playerData.setLastDuration(endTime - startTime);
+        playerData.setNextDue(startTime + plugin.getRayTraceInterval());
+
+        if (plugin.isRunning() && !playerData.isRemoved() && endTime - playerData.getNextDue() >= 0L) {
+            // Still in flight.
+            submit(plugin, playerData);
+        } else {
+            playerData.getInFlight().set(false);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.vanillage.raytraceantixray.tasks;
+
+import com.vanillage.raytraceantixray.antixray.SectionConnectivity;
+import com.vanillage.raytraceantixray.antixray.SolidSection;
+import com.vanillage.raytraceantixray.antixray.SolidSectionCache;
+import com.vanillage.raytraceantixray.data.ChunkBlocks;
+import com.vanillage.raytraceantixray.data.ChunkBlocksMap;
+import com.vanillage.raytraceantixray.data.VectorialLocation;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.bukkit.util.Vector;
+
+import java.util.Arrays;
+
+// Regions of the sections around the player that are connected to the eye by passable blocks, see SectionConnectivity.
+// A ray from a block to the eye only traverses passable blocks (except for blocks next to the block itself), so blocks that aren't near a reachable region are invisible without tracing a ray.
+// Built by the ray trace task before the chunks are traced, read-only while they are traced.
+final class PotentiallyVisibleSet {
+    private final ChunkBlocksMap chunks;
+    private final SolidSectionCache solidSectionCache;
+    private int minSectionX;
+    private int minSectionY;
+    private int minSectionZ;
+    private int sizeX;
+    private int sizeY;
+    private int sizeZ;
+    private SectionConnectivity[] connectivities = new SectionConnectivity[0]; // Null if not reached.
+    private long[][] reached = new long[0][]; // Reached regions of each section.
+    private int[] queue = new int[64]; // Pairs of section index and region.
+    private long builtModCount;
+    private long[] builtEyes = new long[0];
+    private int builtEyeCount;
+
+    PotentiallyVisibleSet(ChunkBlocksMap chunks, SolidSectionCache solidSectionCache) {
+        this.chunks = chunks;
+        this.solidSectionCache = solidSectionCache;
+    }
+
+    // Rebuilds the set if a section it was built from has changed or an eye has moved to another block.
+    public void update(VectorialLocation[] locations, double rayTraceDistance) {
+        // Read first, changes after this are detected on the next call.
+        long modCount = solidSectionCache.getModCount();
+        boolean moved = locations.length != builtEyeCount;
+
+        if (locations.length > builtEyes.length) {
+            builtEyes = new long[locations.length];
+        }
+
+        for (int i = 0; i < locations.length; i++) {
+            Vector vector = locations[i].getVector();
+            long eye = BlockPos.asLong(vector.getBlockX(), vector.getBlockY(), vector.getBlockZ());
+
+            if (builtEyes[i] != eye) {
+                builtEyes[i] = eye;
+                moved = true;
+            }
+        }
+
+        builtEyeCount = locations.length;
+
+        if (!moved && (modCount == builtModCount || isCurrent())) {
+            // Blocks changed elsewhere in the world don't affect the set.
+            builtModCount = modCount;
+            return;
+        }
+
+        builtModCount = modCount;
+        build(locations, rayTraceDistance);
+    }
+
+    // Returns false if a block has changed in a section (or its neighbours) that was loaded during the last build.
+    // Empty and unloaded sections are loaded as passable, blocks placed in them later only make the set larger than necessary.
+    private boolean isCurrent() {
+        for (SectionConnectivity connectivity : connectivities) {
+            if (connectivity != null && !connectivity.isCurrent()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void build(VectorialLocation[] locations, double rayTraceDistance) {
+        // The blocks are within the ray trace distance of the first eye, so the rays stay within this box.
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double maxZ = Double.NEGATIVE_INFINITY;
+
+        for (VectorialLocation location : locations) {
+            Vector vector = location.getVector();
+            minX = Math.min(minX, vector.getX());
+            minY = Math.min(minY, vector.getY());
+            minZ = Math.min(minZ, vector.getZ());
+            maxX = Math.max(maxX, vector.getX());
+            maxY = Math.max(maxY, vector.getY());
+            maxZ = Math.max(maxZ, vector.getZ());
+        }
+
+        minSectionX = (int) Math.floor(minX - rayTraceDistance) >> 4;
+        minSectionY = (int) Math.floor(minY - rayTraceDistance) >> 4;
+        minSectionZ = (int) Math.floor(minZ - rayTraceDistance) >> 4;
+        sizeX = ((int) Math.floor(maxX + rayTraceDistance) >> 4) - minSectionX + 1;
+        sizeY = ((int) Math.floor(maxY + rayTraceDistance) >> 4) - minSectionY + 1;
+        sizeZ = ((int) Math.floor(maxZ + rayTraceDistance) >> 4) - minSectionZ + 1;
+        int size = sizeX * sizeY * sizeZ;
+
+        if (connectivities.length != size) {
+            connectivities = new SectionConnectivity[size];
+            reached = new long[size][];
+        } else {
+            Arrays.fill(connectivities, null);
+            Arrays.fill(reached, null);
+        }
+
+        int tail = 0;
+
+        for (VectorialLocation location : locations) {
+            Vector vector = location.getVector();
+            int x = vector.getBlockX();
+            int y = vector.getBlockY();
+            int z = vector.getBlockZ();
+            int index = getIndex(x >> 4, y >> 4, z >> 4);
+            SectionConnectivity connectivity = load(index);
+            int region = connectivity.getRegion(x & 15, y & 15, z & 15);
+
+            if (region >= 0) {
+                tail = reach(index, region, tail);
+            } else {
+                // The eye is surrounded by solid blocks.
+                for (region = 0; region < connectivity.getRegionCount(); region++) {
+                    tail = reach(index, region, tail);
+                }
+            }
+        }
+
+        for (int head = 0; head < tail; head += 2) {
+            int index = queue[head];
+            SectionConnectivity connectivity = connectivities[index];
+            int region = queue[head + 1];
+            int touches = connectivity.getTouches(region);
+            int sectionX = index % sizeX;
+            int sectionZ = index / sizeX % sizeZ;
+            int sectionY = index / sizeX / sizeZ;
+
+            while (touches != 0) {
+                int direction = Integer.numberOfTrailingZeros(touches);
+                touches &= touches - 1;
+                int neighbourX = sectionX + direction / 9 - 1;
+                int neighbourY = sectionY + direction / 3 % 3 - 1;
+                int neighbourZ = sectionZ + direction % 3 - 1;
+
+                if (neighbourX < 0 || neighbourX >= sizeX || neighbourY < 0 || neighbourY >= sizeY || neighbourZ < 0 || neighbourZ >= sizeZ) {
+                    continue;
+                }
+
+                int neighbourIndex = (neighbourY * sizeZ + neighbourZ) * sizeX + neighbourX;
+                SectionConnectivity neighbour = load(neighbourIndex);
+                int opposite = 1 << 26 - direction;
+
+                for (int neighbourRegion = 0; neighbourRegion < neighbour.getRegionCount(); neighbourRegion++) {
+                    if ((neighbour.getTouches(neighbourRegion) & opposite) != 0 && !isReached(neighbourIndex, neighbourRegion) && connectivity.isAdjacent(region, direction, neighbour, neighbourRegion)) {
+                        tail = reach(neighbourIndex, neighbourRegion, tail);
+                    }
+                }
+            }
+        }
+    }
+
+    // Returns false if no passable block within a Chebyshev distance of 2 to the block is reachable.
+    // The first blocks of a ray may be solid as long as they are next to the block itself, the first block that isn't is passable.
+    public boolean isPotentiallyVisible(int x, int y, int z) {
+        for (int sectionY = y - 2 >> 4; sectionY <= y + 2 >> 4; sectionY++) {
+            for (int sectionZ = z - 2 >> 4; sectionZ <= z + 2 >> 4; sectionZ++) {
+                for (int sectionX = x - 2 >> 4; sectionX <= x + 2 >> 4; sectionX++) {
+                    int offsetX = sectionX - minSectionX;
+                    int offsetY = sectionY - minSectionY;
+                    int offsetZ = sectionZ - minSectionZ;
+
+                    if (offsetX < 0 || offsetX >= sizeX || offsetY < 0 || offsetY >= sizeY || offsetZ < 0 || offsetZ >= sizeZ) {
+                        return true;
+                    }
+
+                    int index = (offsetY * sizeZ + offsetZ) * sizeX + offsetX;
+                    long[] reachedRegions = reached[index];
+
+                    if (reachedRegions == null) {
+                        continue;
+                    }
+
+                    SectionConnectivity connectivity = connectivities[index];
+
+                    for (int blockY = Math.max(y - 2, sectionY << 4); blockY <= Math.min(y + 2, (sectionY << 4) + 15); blockY++) {
+                        for (int blockZ = Math.max(z - 2, sectionZ << 4); blockZ <= Math.min(z + 2, (sectionZ << 4) + 15); blockZ++) {
+                            for (int blockX = Math.max(x - 2, sectionX << 4); blockX <= Math.min(x + 2, (sectionX << 4) + 15); blockX++) {
+                                int region = connectivity.getRegion(blockX & 15, blockY & 15, blockZ & 15);
+
+                                if (region >= 0 && (reachedRegions[region >>> 6] & 1L << region) != 0L) {
+                                    return true;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private int getIndex(int sectionX, int sectionY, int sectionZ) {
+        return ((sectionY - minSectionY) * sizeZ + sectionZ - minSectionZ) * sizeX + sectionX - minSectionX;
+    }
+
+    private boolean isReached(int index, int region) {
+        long[] reachedRegions = reached[index];
+        return reachedRegions != null && (reachedRegions[region >>> 6] & 1L << region) != 0L;
+    }
+
+    private int reach(int index, int region, int tail) {
+        long[] reachedRegions = reached[index];
+
+        if (reachedRegions == null) {
+            reachedRegions = new long[connectivities[index].getRegionCount() + 63 >>> 6];
+            reached[index] = reachedRegions;
+        }
+
+        if ((reachedRegions[region >>> 6] & 1L << region) != 0L) {
+            return tail;
+        }
+
+        reachedRegions[region >>> 6] |= 1L << region;
+
+        if (tail == queue.length) {
+            queue = Arrays.copyOf(queue, tail * 2);
+        }
+
+        queue[tail] = index;
+        queue[tail + 1] = region;
+        return tail + 2;
+    }
+
+    private SectionConnectivity load(int index) {
+        SectionConnectivity connectivity = connectivities[index];
+
+        if (connectivity == null) {
+            connectivity = getConnectivity(minSectionX + index % sizeX, minSectionY + index / sizeX / sizeZ, minSectionZ + index / sizeX % sizeZ);
+            connectivities[index] = connectivity;
+        }
+
+        return connectivity;
+    }
+
+    private SectionConnectivity getConnectivity(int sectionX, int sectionY, int sectionZ) {
+        SolidSection solidSection = getSolidSection(sectionX, sectionY, sectionZ);
+
+        if (solidSection == null) {
+            return SectionConnectivity.PASSABLE;
+        }
+
+        SectionConnectivity connectivity = solidSection.getConnectivity();
+
+        if (connectivity == null || !connectivity.isCurrent()) {
+            SolidSection[] sections = new SolidSection[27];
+
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        sections[SectionConnectivity.direction(dx, dy, dz)] = dx == 0 && dy == 0 && dz == 0 ? solidSection : getSolidSection(sectionX + dx, sectionY + dy, sectionZ + dz);
+                    }
+                }
+            }
+
+            // Concurrent threads may build it more than once.
+            connectivity = SectionConnectivity.build(sections);
+            solidSection.setConnectivity(connectivity);
+        }
+
+        return connectivity;
+    }
+
+    // Returns null if the section is empty, unloaded or outside of the world.
+    private SolidSection getSolidSection(int sectionX, int sectionY, int sectionZ) {
+        ChunkBlocks chunkBlocks = chunks.get(ChunkPos.asLong(sectionX, sectionZ));
+
+        if (chunkBlocks == null) {
+            return null;
+        }
+
+        LevelChunk chunk = chunkBlocks.getChunk();
+
+        if (chunk == null) {
+            return null;
+        }
+
+        int minSection = chunk.getMinSection();
+
+        if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
+            return null;
+        }
+
+        LevelChunkSection section = chunk.getSections()[sectionY - minSection];
+
+        if (section == null || section.hasOnlyAir()) { // Sections aren't null anymore. Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
+            return null;
+        }
+
+        return solidSectionCache.get(section);
+    }
+}
@@ -3,242 +3,155 @@ package com.vanillage.raytraceantixray.tasks;
 import com.destroystokyo.paper.antixray.ChunkPacketBlockController;
 import com.vanillage.raytraceantixray.RayTraceAntiXray;
 import com.vanillage.raytraceantixray.antixray.ChunkPacketBlockControllerAntiXray;
+import com.vanillage.raytraceantixray.antixray.SharedVerdictCache;
+import com.vanillage.raytraceantixray.antixray.SolidSectionCache;
 import com.vanillage.raytraceantixray.data.*;
 import com.vanillage.raytraceantixray.util.BlockIterator;
 import com.vanillage.raytraceantixray.util.BlockOcclusionCulling;
-import com.vanillage.raytraceantixray.util.BlockOcclusionCulling.BlockOcclusionGetter;
-import net.minecraft.core.BlockPos;
 import net.minecraft.world.level.ChunkPos;
-import net.minecraft.world.level.block.Blocks;
-import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.LevelChunk;
-import net.minecraft.world.level.chunk.LevelChunkSection;
-import net.minecraft.world.level.chunk.MissingPaletteEntryException;
 import org.bukkit.craftbukkit.CraftWorld;
 import org.bukkit.util.Vector;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 
 public final class RayTraceCallable implements Callable<Void> {
-    private static final BlockState AIR = Blocks.AIR.defaultBlockState();
+    // Cells per unit of the quantized view direction components of the visibility cache.
+    private static final double DIRECTION_RESOLUTION = 64.;
+    private static final int PURGE_INTERVAL = 128; // Ray traces between purges of garbage collected chunks, a power of two.
+    private static final Comparator<ChunkBlocks> PRIORITY_ORDER = Comparator.comparingDouble(ChunkBlocks::getPriority);
     private final RayTraceAntiXray plugin;
     private final PlayerData playerData;
-    private final CachedSectionBlockOcclusionGetter cachedSectionBlockOcclusionGetter;
-    private final BlockOcclusionCulling blockOcclusionCulling;
-    private final Collection<ChunkBlocks> chunks;
+    private final ChunkPacketBlockControllerAntiXray chunkPacketBlockControllerAntiXray;
+    private final ChunkTracer chunkTracer;
+    // Tracers of the fork/join subtasks, see #traceChunks.
+    private final Queue<ChunkTracer> forkedChunkTracers = new ConcurrentLinkedQueue<>();
+    private final OccupancyWindow occupancyWindow;
+    private final PotentiallyVisibleSet potentiallyVisibleSet;
+    private final ChunkBlocksMap chunks;
     private final double rayTraceDistance;
-    private final double rayTraceDistanceSquared;
-    private final boolean rehideBlocks;
-    private final double rehideDistanceSquared;
-
-    private volatile VectorialLocation[] tracedLocations = null;
+    private final SolidSectionCache solidSectionCache;
+    private final SharedVerdictCache sharedVerdictCache;
+    private final double visibilityCacheCellSize;
+    // Copy of the eye locations of the player, only read again if the sequence number of the snapshot has changed.
+    private final EyeSnapshot.Reader eye;
+    // Visibility cache, see #updateTraceStamp.
+    private int[] cells = new int[EyeSnapshot.MAX_LOCATIONS * 6];
+    private int[] tracedCells = new int[EyeSnapshot.MAX_LOCATIONS * 6];
+    private int tracedCellCount;
+    private long tracedModCount;
+    private long tracedChunksModCount;
+    private int traceStamp;
+    private final double incrementalDrift;
+    private final int incrementalSweepInterval;
+    // Incremental mode, see #updateSweep.
+    private int sweep;
+    private int tracesSinceSweep;
+    private double anchorX;
+    private double anchorY;
+    private double anchorZ;
+    private long anchorModCount;
+    private final long rayTraceBudget;
+    private final long playerTraceBudget;
+    private final int nearChunkRadius;
+    private final int forkJoinChunks;
+    private final List<ChunkBlocks> queue = new ArrayList<>();
+    private int traceTick;
+    private volatile boolean carriedOver; // Written by the fork/join subtasks.
+    // Work of the current ray trace, added by the fork/join subtasks.
+    private final AtomicLong tracedRays = new AtomicLong();
+    private final AtomicLong tracedSteps = new AtomicLong();
 
     public RayTraceCallable(RayTraceAntiXray plugin, PlayerData playerData) {
         this.plugin = plugin;
-        ChunkPacketBlockController chunkPacketBlockController = ((CraftWorld) playerData.getLocations()[0].getWorld()).getHandle().chunkPacketBlockController;
+        ChunkPacketBlockController chunkPacketBlockController = ((CraftWorld) playerData.getWorld()).getHandle().chunkPacketBlockController;
 
         if (!(chunkPacketBlockController instanceof ChunkPacketBlockControllerAntiXray chunkPacketBlockControllerAntiXray)) {
             this.playerData = null;
-            cachedSectionBlockOcclusionGetter = null;
-            blockOcclusionCulling = null;
+            this.chunkPacketBlockControllerAntiXray = null;
+            chunkTracer = null;
+            occupancyWindow = null;
+            potentiallyVisibleSet = null;
             chunks = null;
+            eye = null;
             rayTraceDistance = 0.;
-            rayTraceDistanceSquared = 0.;
-            rehideBlocks = false;
-            rehideDistanceSquared = 0.;
+            solidSectionCache = null;
+            sharedVerdictCache = null;
+            visibilityCacheCellSize = 0.;
+            incrementalDrift = 0.;
+            incrementalSweepInterval = 0;
+            rayTraceBudget = 0L;
+            playerTraceBudget = 0L;
+            nearChunkRadius = 0;
+            forkJoinChunks = 0;
             return;
         }
 
         this.playerData = playerData;
-        MutableLongWrapper mutableLongWrapper = new MutableLongWrapper(0L);
-        ConcurrentMap<LongWrapper, ChunkBlocks> chunks = playerData.getChunks();
-        boolean[] solidGlobal = chunkPacketBlockControllerAntiXray.solidGlobal;
-        cachedSectionBlockOcclusionGetter = new CachedSectionBlockOcclusionGetter() {
-            private static final boolean UNLOADED_OCCLUDING = true;
-            private LevelChunk chunk;
-            private LevelChunkSection section;
-            private int chunkX;
-            private int sectionY;
-            private int chunkZ;
-
-            @Override
-            public boolean isOccluding(int x, int y, int z) {
-                int chunkX = x >> 4;
-                int chunkZ = z >> 4;
-
-                if (this.chunkX != chunkX || this.chunkZ != chunkZ) {
-                    mutableLongWrapper.setValue(ChunkPos.asLong(chunkX, chunkZ));
-                    ChunkBlocks chunkBlocks = chunks.get(mutableLongWrapper);
-
-                    if (chunkBlocks == null) {
-                        return UNLOADED_OCCLUDING;
-                    }
-
-                    LevelChunk chunk = chunkBlocks.getChunk();
-
-                    if (chunk == null) {
-                        return UNLOADED_OCCLUDING;
-                    }
-
-                    int sectionY = y >> 4;
-                    int minSection = chunk.getMinSection();
-
-                    if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
-                        return false;
-                    }
-
-                    LevelChunkSection section = chunk.getSections()[sectionY - minSection];
-                    return section != null && !section.hasOnlyAir() && solidGlobal[ChunkPacketBlockControllerAntiXray.GLOBAL_BLOCKSTATE_PALETTE.idFor(getBlockState(section, x, y, z))]; // Sections aren't null anymore. Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
-                }
-
-                int sectionY = y >> 4;
-
-                if (this.sectionY != sectionY) {
-                    if (chunk == null) {
-                        return UNLOADED_OCCLUDING;
-                    }
-
-                    int minSection = chunk.getMinSection();
-
-                    if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
-                        return false;
-                    }
-
-                    LevelChunkSection section = chunk.getSections()[sectionY - minSection];
-                    return section != null && !section.hasOnlyAir() && solidGlobal[ChunkPacketBlockControllerAntiXray.GLOBAL_BLOCKSTATE_PALETTE.idFor(getBlockState(section, x, y, z))]; // Sections aren't null anymore. Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
-                }
-
-                if (section == null) {
-                    return chunk == null && UNLOADED_OCCLUDING;
-                }
-
-                return solidGlobal[ChunkPacketBlockControllerAntiXray.GLOBAL_BLOCKSTATE_PALETTE.idFor(getBlockState(section, x, y, z))];
-            }
-
-            @Override
-            public boolean isOccludingRay(int x, int y, int z) {
-                int chunkX = x >> 4;
-                int sectionY = y >> 4;
-                int chunkZ = z >> 4;
-
-                if (this.chunkX != chunkX || this.chunkZ != chunkZ) {
-                    this.chunkX = chunkX;
-                    this.sectionY = sectionY;
-                    this.chunkZ = chunkZ;
-                    mutableLongWrapper.setValue(ChunkPos.asLong(chunkX, chunkZ));
-                    ChunkBlocks chunkBlocks = chunks.get(mutableLongWrapper);
-
-                    if (chunkBlocks == null) {
-                        chunk = null;
-                        section = null;
-                        return UNLOADED_OCCLUDING;
-                    }
-
-                    chunk = chunkBlocks.getChunk();
-
-                    if (chunk == null) {
-                        section = null;
-                        return UNLOADED_OCCLUDING;
-                    }
-
-                    int minSection = chunk.getMinSection();
-
-                    if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
-                        section = null;
-                        return false;
-                    }
-
-                    section = chunk.getSections()[sectionY - minSection];
-
-                    if (section == null) { // Sections aren't null anymore.
-                        return false;
-                    }
-
-                    if (section.hasOnlyAir()) { // Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
-                        section = null;
-                        return false;
-                    }
-
-                    return solidGlobal[ChunkPacketBlockControllerAntiXray.GLOBAL_BLOCKSTATE_PALETTE.idFor(getBlockState(section, x, y, z))];
-                }
-
-                if (this.sectionY != sectionY) {
-                    this.sectionY = sectionY;
-
-                    if (chunk == null) {
-                        // section = null;
-                        return UNLOADED_OCCLUDING;
-                    }
-
-                    int minSection = chunk.getMinSection();
-
-                    if (sectionY < minSection || sectionY >= chunk.getMaxSection()) {
-                        section = null;
-                        return false;
-                    }
-
-                    section = chunk.getSections()[sectionY - minSection];
-
-                    if (section == null) { // Sections aren't null anymore.
-                        return false;
-                    }
-
-                    if (section.hasOnlyAir()) { // Unfortunately, LevelChunkSection#recalcBlockCounts() temporarily resets #nonEmptyBlockCount to 0 due to a Paper optimization.
-                        section = null;
-                        return false;
-                    }
-
-                    return solidGlobal[ChunkPacketBlockControllerAntiXray.GLOBAL_BLOCKSTATE_PALETTE.idFor(getBlockState(section, x, y, z))];
-                }
-
-                if (section == null) {
-                    return chunk == null && UNLOADED_OCCLUDING;
-                }
+        this.chunkPacketBlockControllerAntiXray = chunkPacketBlockControllerAntiXray;
+        solidSectionCache = chunkPacketBlockControllerAntiXray.getSolidSectionCache();
+        sharedVerdictCache = chunkPacketBlockControllerAntiXray.getSharedVerdictCache();
+        occupancyWindow = chunkPacketBlockControllerAntiXray.occupancyWindowSize == 0 ? null : new OccupancyWindow(chunkPacketBlockControllerAntiXray.occupancyWindowSize + 15 >> 4);
+        potentiallyVisibleSet = chunkPacketBlockControllerAntiXray.sectionConnectivity ? new PotentiallyVisibleSet(playerData.getChunks(), solidSectionCache) : null;
+        chunks = playerData.getChunks();
+        eye = new EyeSnapshot.Reader(playerData.getWorld());
+        rayTraceDistance = chunkPacketBlockControllerAntiXray.rayTraceDistance;
+        visibilityCacheCellSize = chunkPacketBlockControllerAntiXray.visibilityCacheCellSize;
+        incrementalDrift = chunkPacketBlockControllerAntiXray.incrementalDrift;
+        incrementalSweepInterval = chunkPacketBlockControllerAntiXray.incrementalSweepInterval;
+        rayTraceBudget = plugin.getRayTraceBudget();
+        playerTraceBudget = plugin.getPlayerTraceBudget();
+        nearChunkRadius = plugin.getNearChunkRadius();
+        forkJoinChunks = plugin.getForkJoinChunks();
+        chunkTracer = createChunkTracer();
+    }
 
-                return solidGlobal[ChunkPacketBlockControllerAntiXray.GLOBAL_BLOCKSTATE_PALETTE.idFor(getBlockState(section, x, y, z))];
-            }
+    private ChunkTracer createChunkTracer() {
+        CachedSectionBlockOcclusionGetter cachedSectionBlockOcclusionGetter = new CachedSectionBlockOcclusionGetter(playerData.getChunks(), solidSectionCache, occupancyWindow);
+        BlockOcclusionCulling blockOcclusionCulling = new BlockOcclusionCulling(new BlockIterator(0., 0., 0., 0., 0., 0.)::initializeNormalized, cachedSectionBlockOcclusionGetter, true, chunkPacketBlockControllerAntiXray.frustumHorizontalFov, chunkPacketBlockControllerAntiXray.frustumVerticalFov);
+        SpecializedBlockOcclusionCulling specializedBlockOcclusionCulling = chunkPacketBlockControllerAntiXray.specializedOcclusionCulling ? new SpecializedBlockOcclusionCulling(cachedSectionBlockOcclusionGetter, blockOcclusionCulling) : null;
+        double rehideDistance = chunkPacketBlockControllerAntiXray.rehideDistance;
+        return new ChunkTracer(cachedSectionBlockOcclusionGetter, blockOcclusionCulling, specializedBlockOcclusionCulling, rayTraceDistance * rayTraceDistance, chunkPacketBlockControllerAntiXray.rehideBlocks, rehideDistance * rehideDistance);
+    }
 
-            @Override
-            public void initializeCache(LevelChunk chunk, int chunkX, int sectionY, int chunkZ) {
-                this.chunk = chunk;
-                section = chunk.getSections()[sectionY - chunk.getMinSection()];
-                this.chunkX = chunkX;
-                this.sectionY = sectionY;
-                this.chunkZ = chunkZ;
-            }
+    // Whether chunks were left untraced in the last ray trace because the budget was exceeded or the result buffer was full.
+    public boolean isCarriedOver() {
+        return carriedOver;
+    }
 
-            @Override
-            public void clearCache() {
-                chunk = null;
-                section = null;
-            }
-        };
-        blockOcclusionCulling = new BlockOcclusionCulling(new BlockIterator(0., 0., 0., 0., 0., 0.)::initializeNormalized, cachedSectionBlockOcclusionGetter, true);
-        this.chunks = chunks.values();
-        rayTraceDistance = chunkPacketBlockControllerAntiXray.rayTraceDistance;
-        rayTraceDistanceSquared = rayTraceDistance * rayTraceDistance;
-        rehideBlocks = chunkPacketBlockControllerAntiXray.rehideBlocks;
-        double rehideDistance = chunkPacketBlockControllerAntiXray.rehideDistance;
-        rehideDistanceSquared = rehideDistance * rehideDistance;
+    public OccupancyWindow getOccupancyWindow() {
+        return occupancyWindow;
     }
 
     @Override
     public Void call() {
-        VectorialLocation[] locations = playerData.getLocations();
-        if (Arrays.equals(tracedLocations, locations)) {
-            // we already did raytracing for these locations
+        if (chunkTracer == null) {
             return null;
         }
 
-        // set before rayTrace to avoid constantly trying if error thrown.
-        tracedLocations = locations;
+        EyeSnapshot snapshot = playerData.getEye();
+        // The locations of the last ray trace are kept if they haven't changed.
+        boolean moved = snapshot.getSequence() != eye.getSequence();
+
+        if (moved) {
+            snapshot.read(eye);
+        }
+
+        if (visibilityCacheCellSize == 0. ? !carriedOver && !moved : !updateTraceStamp(moved)) {
+            // we already did raytracing for these locations
+            return null;
+        }
 
         try {
             rayTrace();
@@ -250,17 +163,95 @@ public final class RayTraceCallable implements Callable<Void> {
         return null;
     }
 
+    // Returns false if the previous results are still valid.
+    // This is the case if the eye cells and the quantized view directions are the same, no solidity has changed in the world and no chunk has been added, replaced or removed.
+    private boolean updateTraceStamp(boolean moved) {
+        boolean cellsChanged = false;
+
+        if (moved) {
+            VectorialLocation[] locations = eye.getLocations();
+            int[] cells = this.cells;
+            int cellCount = locations.length * 6;
+
+            for (int i = 0; i < locations.length; i++) {
+                Vector vector = locations[i].getVector();
+                Vector direction = locations[i].getDirection();
+                cells[i * 6] = (int) Math.floor(vector.getX() / visibilityCacheCellSize);
+                cells[i * 6 + 1] = (int) Math.floor(vector.getY() / visibilityCacheCellSize);
+                cells[i * 6 + 2] = (int) Math.floor(vector.getZ() / visibilityCacheCellSize);
+                cells[i * 6 + 3] = (int) Math.floor(direction.getX() * DIRECTION_RESOLUTION);
+                cells[i * 6 + 4] = (int) Math.floor(direction.getY() * DIRECTION_RESOLUTION);
+                cells[i * 6 + 5] = (int) Math.floor(direction.getZ() * DIRECTION_RESOLUTION);
+            }
+
+            if (!Arrays.equals(cells, 0, cellCount, tracedCells, 0, tracedCellCount)) {
+                this.cells = tracedCells;
+                tracedCells = cells;
+                tracedCellCount = cellCount;
+                cellsChanged = true;
+            }
+        }
+
+        // Read the mod count first, changes during the ray trace are detected on the next tick.
+        long modCount = solidSectionCache.getModCount();
+        long chunksModCount = chunks.getModCount();
+        // New chunks are occluding while they are unloaded, so they affect the other chunks too.
+        // Resent chunks have to be traced again, so the mod count of the map is compared instead of its size.
+        if (cellsChanged || modCount != tracedModCount || chunksModCount != tracedChunksModCount) {
+            tracedModCount = modCount;
+            tracedChunksModCount = chunksModCount;
+            traceStamp++;
+            return true;
+        }
+
+        // Chunks that haven't been traced yet for the current entry.
+        return carriedOver;
+    }
+
+    // Starts a new full sweep if the eye has drifted too far from the position of the last one, a block has changed or the sweep interval has elapsed.
+    // Ray results of previous sweeps are discarded lazily per chunk.
+    private void updateSweep(double playerX, double playerY, double playerZ) {
+        double driftX = playerX - anchorX;
+        double driftY = playerY - anchorY;
+        double driftZ = playerZ - anchorZ;
+        long modCount = solidSectionCache.getModCount();
+
+        if (sweep == 0 || driftX * driftX + driftY * driftY + driftZ * driftZ > incrementalDrift * incrementalDrift || modCount != anchorModCount || ++tracesSinceSweep >= incrementalSweepInterval) {
+            sweep++;
+            tracesSinceSweep = 0;
+            anchorX = playerX;
+            anchorY = playerY;
+            anchorZ = playerZ;
+            anchorModCount = modCount;
+        }
+    }
+
     private void rayTrace() {
-        if (blockOcclusionCulling == null) {
+        if (chunkTracer == null) {
             return;
         }
 
-        ConcurrentMap<LongWrapper, ChunkBlocks> chunks = playerData.getChunks();
-        VectorialLocation[] locations = playerData.getLocations();
+        long startTime = System.nanoTime();
+        boolean budgeted = rayTraceBudget != 0L || playerTraceBudget != 0L;
+        tracedRays.set(0L);
+        tracedSteps.set(0L);
+        carriedOver = false;
+
+        // Owned by this ray trace, so the player vector can be modified temporarily below.
+        VectorialLocation[] locations = eye.getLocations();
         Vector playerVector = locations[0].getVector();
         double playerX = playerVector.getX();
         double playerY = playerVector.getY();
         double playerZ = playerVector.getZ();
+
+        if (occupancyWindow != null) {
+            occupancyWindow.update(playerVector.getBlockX() >> 4, playerVector.getBlockY() >> 4, playerVector.getBlockZ() >> 4, chunks.getModCount(), solidSectionCache.getModCount(), chunkTracer.getCachedSectionBlockOcclusionGetter());
+        }
+
+        if (potentiallyVisibleSet != null) {
+            potentiallyVisibleSet.update(locations, rayTraceDistance);
+        }
+
         playerVector.setX(playerX - rayTraceDistance);
         playerVector.setZ(playerZ - rayTraceDistance);
         int chunkXMin = playerVector.getBlockX() >> 4;
@@ -271,121 +262,197 @@ public final class RayTraceCallable implements Callable<Void> {
         int chunkZMax = playerVector.getBlockZ() >> 4;
         playerVector.setX(playerX);
         playerVector.setZ(playerZ);
-        Queue<Result> results = playerData.getResults();
+        ResultBuffer results = playerData.getResults();
 
-        for (ChunkBlocks chunkBlocks : this.chunks) {
-            LevelChunk chunk = chunkBlocks.getChunk();
+        if (incrementalDrift != 0.) {
+            updateSweep(playerX, playerY, playerZ);
+        }
 
-            if (chunk == null) {
-                chunks.remove(chunkBlocks.getKey(), chunkBlocks);
-                continue;
-            }
+        int sweep = this.sweep;
+        // Shared with the players whose eyes are in the same cell during this ray trace tick.
+        SharedVerdictCache.Cell sharedVerdicts = sharedVerdictCache == null ? null : sharedVerdictCache.getCell(playerX, playerY, playerZ, plugin.getRayTraceTick(), solidSectionCache.getModCount());
+        Vector direction = locations[0].getDirection();
+        traceTick++;
 
-            ChunkPos chunkPos = chunk.getPos();
-            int chunkX = chunkPos.x;
+        if ((traceTick & PURGE_INTERVAL - 1) == 0) {
+            purgeChunks();
+        }
 
-            if (chunkX < chunkXMin || chunkX > chunkXMax) {
-                continue;
-            }
+        double rayTraceDistanceSquared = rayTraceDistance * rayTraceDistance;
 
-            int chunkZ = chunkPos.z;
+        // Only look up the chunks whose column intersects the ray trace sphere instead of iterating all chunks the player has loaded.
+        for (int chunkX = chunkXMin; chunkX <= chunkXMax; chunkX++) {
+            // Distance to the closest point of the chunk column.
+            double distanceX = Math.max(Math.max((chunkX << 4) - playerX, playerX - ((chunkX << 4) + 16)), 0.);
 
-            if (chunkZ < chunkZMin || chunkZ > chunkZMax) {
-                continue;
-            }
+            for (int chunkZ = chunkZMin; chunkZ <= chunkZMax; chunkZ++) {
+                double distanceZ = Math.max(Math.max((chunkZ << 4) - playerZ, playerZ - ((chunkZ << 4) + 16)), 0.);
 
-            Iterator<Entry<BlockPos, Boolean>> iterator = chunkBlocks.getBlocks().entrySet().iterator();
-
-            while (iterator.hasNext()) {
-                Entry<BlockPos, Boolean> blockHidden = iterator.next();
-                BlockPos block = blockHidden.getKey();
-                int x = block.getX();
-                int y = block.getY();
-                int z = block.getZ();
-                double centerX = x + 0.5;
-                double centerY = y + 0.5;
-                double centerZ = z + 0.5;
-                double differenceX = playerX - centerX;
-                double differenceY = playerY - centerY;
-                double differenceZ = playerZ - centerZ;
-                double distanceSquared = differenceX * differenceX + differenceY * differenceY + differenceZ * differenceZ;
-
-                if (!(distanceSquared <= rayTraceDistanceSquared)) {
+                if (distanceX * distanceX + distanceZ * distanceZ > rayTraceDistanceSquared) {
                     continue;
                 }
 
-                boolean visible = false;
-
-                if (distanceSquared < rehideDistanceSquared) {
-                    int sectionY = y >> 4;
-
-                    for (int i = 0; i < locations.length; i++) {
-                        VectorialLocation location = locations[i];
-                        Vector direction = location.getDirection();
-                        double directionX = direction.getX();
-                        double directionY = direction.getY();
-                        double directionZ = direction.getZ();
-                        cachedSectionBlockOcclusionGetter.initializeCache(chunk, chunkX, sectionY, chunkZ);
-
-                        if (i == 0) {
-                            if (blockOcclusionCulling.isVisible(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared, directionX, directionY, directionZ)) {
-                                visible = true;
-                                break;
-                            }
-                        } else {
-                            Vector vector = location.getVector();
-                            double vectorDifferenceX = vector.getX() - centerX;
-                            double vectorDifferenceY = vector.getY() - centerY;
-                            double vectorDifferenceZ = vector.getZ() - centerZ;
-
-                            if (blockOcclusionCulling.isVisible(x, y, z, centerX, centerY, centerZ, vectorDifferenceX, vectorDifferenceY, vectorDifferenceZ, vectorDifferenceX * vectorDifferenceX + vectorDifferenceY * vectorDifferenceY + vectorDifferenceZ * vectorDifferenceZ, directionX, directionY, directionZ)) {
-                                visible = true;
-                                break;
-                            }
-                        }
-                    }
+                ChunkBlocks chunkBlocks = chunks.get(ChunkPos.asLong(chunkX, chunkZ));
+
+                if (chunkBlocks == null) {
+                    continue;
                 }
 
-                boolean hidden = blockHidden.getValue();
+                if (chunkBlocks.getChunk() == null) {
+                    chunks.remove(chunkBlocks.getKey(), chunkBlocks);
+                    continue;
+                }
+
+                if (visibilityCacheCellSize != 0. && chunkBlocks.getTracedStamp() == traceStamp) {
+                    // Already traced for the current visibility cache entry, only carried over chunks are left.
+                    continue;
+                }
+
+                if (budgeted) {
+                    chunkBlocks.setPriority(getPriority(chunkBlocks, chunkX, chunkZ, playerX, playerZ, direction.getX(), direction.getZ()));
+                }
+
+                queue.add(chunkBlocks);
+            }
+        }
+
+        int traceStamp = this.traceStamp;
+
+        if (!budgeted) {
+            traceChunks((chunkTracer, chunkBlocks) -> {
+                LevelChunk chunk = chunkBlocks.getChunk();
 
-                if (visible) {
-                    if (hidden) {
-                        results.add(new Result(chunkBlocks, block, true));
+                if (chunk != null) {
+                    ChunkPos chunkPos = chunk.getPos();
 
-                        if (rehideBlocks) {
-                            blockHidden.setValue(false);
-                        } else {
-                            iterator.remove();
-                        }
+                    if (chunkTracer.traceChunk(chunkBlocks, chunk, chunkPos.x, chunkPos.z, locations, playerX, playerY, playerZ, results, sweep, sharedVerdicts, potentiallyVisibleSet)) {
+                        chunkBlocks.setTracedStamp(traceStamp);
+                    } else {
+                        carriedOver = true;
                     }
-                } else if (!hidden) {
-                    results.add(new Result(chunkBlocks, block, false));
-                    blockHidden.setValue(true);
                 }
+            });
+        } else {
+            // Process the most urgent chunks first until the deadline of the ray trace tick is reached or the player has used up its work budget.
+            // The remaining chunks are carried over and become more urgent with every tick they have to wait.
+            queue.sort(PRIORITY_ORDER);
+            // Without a global barrier, each player has its own deadline.
+            long deadline = plugin.isPipelinedScheduling() ? startTime + plugin.getRayTraceBudget() : plugin.getRayTraceDeadline();
+            int playerChunkX = (int) Math.floor(playerX) >> 4;
+            int playerChunkZ = (int) Math.floor(playerZ) >> 4;
+            int traceTick = this.traceTick;
+            traceChunks((chunkTracer, chunkBlocks) -> {
+                LevelChunk chunk = chunkBlocks.getChunk();
+
+                if (chunk == null) {
+                    return;
+                }
+
+                ChunkPos chunkPos = chunk.getPos();
+                int chunkX = chunkPos.x;
+                int chunkZ = chunkPos.z;
+
+                // Chunks around the player are always traced.
+                if ((rayTraceBudget != 0L && System.nanoTime() - deadline > 0L || playerTraceBudget != 0L && tracedSteps.get() >= playerTraceBudget) && (Math.abs(chunkX - playerChunkX) > nearChunkRadius || Math.abs(chunkZ - playerChunkZ) > nearChunkRadius)) {
+                    carriedOver = true;
+                    return;
+                }
+
+                if (chunkTracer.traceChunk(chunkBlocks, chunk, chunkX, chunkZ, locations, playerX, playerY, playerZ, results, sweep, sharedVerdicts, potentiallyVisibleSet)) {
+                    chunkBlocks.setTracedStamp(traceStamp);
+                    chunkBlocks.setTracedTick(traceTick);
+                } else {
+                    carriedOver = true;
+                }
+            });
+        }
+
+        queue.clear();
+        chunkTracer.clearCache();
+        playerData.account(tracedRays.get(), tracedSteps.get());
+    }
+
+    // Removes the chunks that have been garbage collected without a chunk unload packet. Chunks within the ray trace distance are also removed when they are looked up.
+    private void purgeChunks() {
+        for (ChunkBlocks chunkBlocks : chunks) {
+            if (chunkBlocks.getChunk() == null) {
+                chunks.remove(chunkBlocks.getKey(), chunkBlocks);
             }
         }
+    }
 
-        cachedSectionBlockOcclusionGetter.clearCache();
+    // Traces the queued chunks in order.
+    // If enabled and called from a fork/join pool, the queue is split into subtasks of forkJoinChunks chunks that idle ray trace threads can steal.
+    // Each chunk is traced by exactly one subtask, so the chunk state doesn't need to be synchronized. The results are collected in the result buffer of the player.
+    private void traceChunks(BiConsumer<ChunkTracer, ChunkBlocks> traceChunk) {
+        if (forkJoinChunks == 0 || queue.size() <= forkJoinChunks || !ForkJoinTask.inForkJoinPool()) {
+            for (ChunkBlocks chunkBlocks : queue) {
+                traceChunk(traceChunk, chunkTracer, chunkBlocks);
+            }
+
+            return;
+        }
+
+        new ChunkTraceAction(traceChunk, 0, queue.size()).invoke();
     }
 
-    private static BlockState getBlockState(LevelChunkSection section, int x, int y, int z) {
-        // synchronized (section.getStates()) {
-        //     try {
-        //         section.getStates().acquire();
-                try {
-                    return section.getBlockState(x & 15, y & 15, z & 15);
-                } catch (MissingPaletteEntryException e) {
-                    return AIR;
-                }
-        //     } finally {
-        //         section.getStates().release();
-        //     }
-        // }
+    // Traces a chunk and adds the work to the accounting of the current ray trace.
+    private void traceChunk(BiConsumer<ChunkTracer, ChunkBlocks> traceChunk, ChunkTracer chunkTracer, ChunkBlocks chunkBlocks) {
+        long rays = chunkTracer.getRays();
+        long steps = chunkTracer.getSteps();
+        traceChunk.accept(chunkTracer, chunkBlocks);
+        tracedRays.addAndGet(chunkTracer.getRays() - rays);
+        tracedSteps.addAndGet(chunkTracer.getSteps() - steps);
     }
 
-    private interface CachedSectionBlockOcclusionGetter extends BlockOcclusionGetter {
-        void initializeCache(LevelChunk chunk, int chunkX, int sectionY, int chunkZ);
+    // Lower is more urgent: nearest first, in front of the player first, waiting longer first.
+    private double getPriority(ChunkBlocks chunkBlocks, int chunkX, int chunkZ, double playerX, double playerZ, double directionX, double directionZ) {
+        double differenceX = (chunkX << 4) + 8 - playerX;
+        double differenceZ = (chunkZ << 4) + 8 - playerZ;
+        double distance = Math.sqrt(differenceX * differenceX + differenceZ * differenceZ);
+
+        // Behind the player by more than half a chunk diagonal.
+        if (differenceX * directionX + differenceZ * directionZ < -11.5 * Math.sqrt(directionX * directionX + directionZ * directionZ)) {
+            distance *= 2.;
+        }
+
+        return distance / (1 + traceTick - chunkBlocks.getTracedTick());
+    }
+
+    private final class ChunkTraceAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BiConsumer<ChunkTracer, ChunkBlocks> traceChunk;
+        private final int from;
+        private final int to;
+
+        private ChunkTraceAction(BiConsumer<ChunkTracer, ChunkBlocks> traceChunk, int from, int to) {
+            this.traceChunk = traceChunk;
+            this.from = from;
+            this.to = to;
+        }
 
-        void clearCache();
+        @Override
+        protected void compute() {
+            if (to - from > forkJoinChunks) {
+                int middle = from + to >>> 1;
+                invokeAll(new ChunkTraceAction(traceChunk, from, middle), new ChunkTraceAction(traceChunk, middle, to));
+                return;
+            }
+
+            ChunkTracer chunkTracer = forkedChunkTracers.poll();
+
+            if (chunkTracer == null) {
+                chunkTracer = createChunkTracer();
+            }
+
+            try {
+                for (int i = from; i < to; i++) {
+                    traceChunk(traceChunk, chunkTracer, queue.get(i));
+                }
+            } finally {
+                chunkTracer.clearCache();
+                forkedChunkTracers.offer(chunkTracer);
+            }
+        }
     }
 }
@@ -1,8 +1,14 @@
 package com.vanillage.raytraceantixray.tasks;
 
 import com.vanillage.raytraceantixray.RayTraceAntiXray;
+import com.vanillage.raytraceantixray.data.OccupancyWindow;
+import com.vanillage.raytraceantixray.data.PlayerData;
 import com.vanillage.raytraceantixray.util.TimeFormatting;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 import java.util.TimerTask;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -10,23 +16,53 @@ import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 public final class RayTraceTimerTask extends TimerTask {
+    // Players that caused less work recently are traced first, so a single player can't delay everyone else.
+    private static final Comparator<PlayerData> USAGE_ORDER = Comparator.comparingDouble(PlayerData::getUsage);
 
     private final RayTraceAntiXray plugin;
+    private long lastStartTime;
 
     public RayTraceTimerTask(RayTraceAntiXray plugin) {
         this.plugin = plugin;
+        lastStartTime = System.nanoTime();
     }
 
     @Override
     public void run() {
         try {
             final boolean timings = plugin.isTimingsEnabled();
-            final long startTime = timings ? System.nanoTime() : 0L;
+            final AdaptiveCadence adaptiveCadence = plugin.getAdaptiveCadence();
 
-            plugin.getExecutorService().invokeAll(plugin.getPlayerData().values().stream().map(pd -> pd.getCallable()).collect(Collectors.toList()));
+            if (plugin.isPipelinedScheduling()) {
+                plugin.setRayTraceTick(plugin.getRayTraceTick() + 1L);
+                dispatch(timings, adaptiveCadence);
+                return;
+            }
+
+            final long startTime = System.nanoTime();
+
+            // The timer runs at the minimum interval, skip runs until the adaptive interval has elapsed (with some tolerance for timer jitter).
+            if (adaptiveCadence != null && startTime - lastStartTime < adaptiveCadence.getInterval() - adaptiveCadence.getMinInterval() / 2L) {
+                return;
+            }
+
+            lastStartTime = startTime;
+            plugin.setRayTraceTick(plugin.getRayTraceTick() + 1L);
+            plugin.setRayTraceDeadline(startTime + plugin.getRayTraceBudget());
+
+            // All ray traces of the previous tick have finished, so the usages don't change while sorting.
+            plugin.getExecutorService().invokeAll(plugin.getPlayerData().values().stream().sorted(USAGE_ORDER).map(pd -> pd.getCallable()).collect(Collectors.toList()));
+            final long endTime = System.nanoTime();
+
+            if (adaptiveCadence != null) {
+                adaptiveCadence.update(endTime, endTime - startTime, getPendingPlayers());
+            }
 
             if (timings) {
-                plugin.getLogger().info((TimeFormatting.format(TimeUnit.NANOSECONDS, System.nanoTime() - startTime, TimeUnit.MICROSECONDS, TimeUnit.MILLISECONDS)) + " per ray trace tick.");
+                plugin.getLogger().info((TimeFormatting.format(TimeUnit.NANOSECONDS, endTime - startTime, TimeUnit.MICROSECONDS, TimeUnit.MILLISECONDS)) + " per ray trace tick.");
+                logOccupancyWindows();
+                logWork();
+                logAdaptiveCadence(adaptiveCadence);
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -36,4 +72,116 @@ public final class RayTraceTimerTask extends TimerTask {
             plugin.getLogger().log(Level.SEVERE, "Error thrown while raytracing: ", t);
         }
     }
+
+    // Submits every player that is due and not in flight. There's no barrier, a slow player only delays itself.
+    private void dispatch(boolean timings, AdaptiveCadence adaptiveCadence) {
+        long now = System.nanoTime();
+        int players = 0;
+        long totalDuration = 0L;
+        long maxDuration = 0L;
+        long maxFinishedDuration = 0L;
+        List<PlayerData> due = new ArrayList<>();
+
+        for (PlayerData playerData : plugin.getPlayerData().values()) {
+            if (now - playerData.getNextDue() >= 0L && !playerData.getInFlight().get()) {
+                due.add(playerData);
+            }
+
+            long duration = playerData.getLastDuration();
+            players++;
+            totalDuration += duration;
+            maxDuration = Math.max(maxDuration, duration);
+            maxFinishedDuration = Math.max(maxFinishedDuration, playerData.takeFinishedDuration());
+        }
+
+        // The due players aren't in flight, so their usages don't change while sorting.
+        due.sort(USAGE_ORDER);
+
+        for (PlayerData playerData : due) {
+            PlayerRayTraceTask.submitIfDue(plugin, playerData, now);
+        }
+
+        if (adaptiveCadence != null && maxFinishedDuration != 0L) {
+            // Without a barrier, the slowest player determines whether the interval can be kept.
+            // Only ray traces that have finished since the last dispatch are counted, otherwise an old duration would be counted on every run of the timer.
+            adaptiveCadence.update(now, maxFinishedDuration, getPendingPlayers());
+        }
+
+        if (timings && players != 0) {
+            plugin.getLogger().info(TimeFormatting.format(TimeUnit.NANOSECONDS, totalDuration / players, TimeUnit.MICROSECONDS, TimeUnit.MILLISECONDS) + " average and " + TimeFormatting.format(TimeUnit.NANOSECONDS, maxDuration, TimeUnit.MICROSECONDS, TimeUnit.MILLISECONDS) + " maximum per player ray trace.");
+            logWork();
+            logAdaptiveCadence(adaptiveCadence);
+        }
+    }
+
+    private int getPendingPlayers() {
+        int pendingPlayers = 0;
+
+        for (PlayerData playerData : plugin.getPlayerData().values()) {
+            if (playerData.getCallable() instanceof RayTraceCallable rayTraceCallable && rayTraceCallable.isCarriedOver()) {
+                pendingPlayers++;
+            }
+        }
+
+        return pendingPlayers;
+    }
+
+    // Work of the last ray trace of each player.
+    private void logWork() {
+        int players = 0;
+        long rays = 0L;
+        long steps = 0L;
+        long maxSteps = 0L;
+        int overBudget = 0;
+        long playerTraceBudget = plugin.getPlayerTraceBudget();
+
+        for (PlayerData playerData : plugin.getPlayerData().values()) {
+            long playerSteps = playerData.getLastSteps();
+            players++;
+            rays += playerData.getLastRays();
+            steps += playerSteps;
+            maxSteps = Math.max(maxSteps, playerSteps);
+
+            if (playerTraceBudget != 0L && playerSteps >= playerTraceBudget) {
+                overBudget++;
+            }
+        }
+
+        if (players != 0) {
+            plugin.getLogger().info(rays + " rays and " + steps + " block steps, " + steps / players + " average and " + maxSteps + " maximum block steps per player ray trace" + (playerTraceBudget == 0L ? "." : ", " + overBudget + " players over budget."));
+        }
+    }
+
+    private void logAdaptiveCadence(AdaptiveCadence adaptiveCadence) {
+        if (adaptiveCadence != null) {
+            plugin.getLogger().info("Adaptive cadence: " + TimeFormatting.format(TimeUnit.NANOSECONDS, adaptiveCadence.getInterval(), TimeUnit.MICROSECONDS, TimeUnit.MILLISECONDS) + " per ray trace tick, " + adaptiveCadence.getUpdateTicks() + " update ticks (" + adaptiveCadence.getDecision().name().toLowerCase(Locale.ROOT).replace('_', ' ') + ", " + Math.round(adaptiveCadence.getLoad() * 100.) + "% load, " + String.format(Locale.ROOT, "%.1f", adaptiveCadence.getMspt()) + " MSPT, " + adaptiveCadence.getPendingPlayers() + " players with carried over chunks).");
+        }
+    }
+
+    private void logOccupancyWindows() {
+        // All ray trace tasks have finished, so we can safely read and reset the statistics.
+        int windows = 0;
+        long memoryUsage = 0L;
+        long hits = 0L;
+        long misses = 0L;
+
+        for (PlayerData playerData : plugin.getPlayerData().values()) {
+            if (playerData.getCallable() instanceof RayTraceCallable rayTraceCallable) {
+                OccupancyWindow occupancyWindow = rayTraceCallable.getOccupancyWindow();
+
+                if (occupancyWindow != null) {
+                    windows++;
+                    memoryUsage += occupancyWindow.getMemoryUsage();
+                    hits += occupancyWindow.getHits();
+                    misses += occupancyWindow.getMisses();
+                    occupancyWindow.resetStatistics();
+                }
+            }
+        }
+
+        if (windows != 0) {
+            long probes = hits + misses;
+            plugin.getLogger().info(windows + " occupancy windows, " + memoryUsage / windows / 1024L + " KiB per player, " + (probes == 0L ? 100L : hits * 100L / probes) + "% hit rate.");
+        }
+    }
 }
@@ -0,0 +1,210 @@
+package com.vanillage.raytraceantixray.tasks;
+
+import com.vanillage.raytraceantixray.util.BlockOcclusionCulling;
+
+// Same as BlockOcclusionCulling#isVisible with a BlockIterator and a CachedSectionBlockOcclusionGetter but specialized for them.
+// The traversal state is kept in local variables and all calls go to final classes, so the JIT can inline the whole inner loop.
+// The verdicts are exactly the same, the generic path is kept for comparison.
+// Not thread-safe, each thread that traces chunks of a player needs its own instance.
+final class SpecializedBlockOcclusionCulling {
+    private final CachedSectionBlockOcclusionGetter blockOcclusionGetter;
+    private final BlockOcclusionCulling blockOcclusionCulling; // Only used for the view frustum.
+    private boolean grazing;
+    private long steps;
+
+    SpecializedBlockOcclusionCulling(CachedSectionBlockOcclusionGetter blockOcclusionGetter, BlockOcclusionCulling blockOcclusionCulling) {
+        this.blockOcclusionGetter = blockOcclusionGetter;
+        this.blockOcclusionCulling = blockOcclusionCulling;
+    }
+
+    public boolean isVisible(int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared, double directionX, double directionY, double directionZ) {
+        if (!blockOcclusionCulling.isInFrustum(differenceX, differenceY, differenceZ, directionX, directionY, directionZ)) {
+            grazing = false;
+            return false;
+        }
+
+        return isUnoccluded(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared);
+    }
+
+    // See BlockOcclusionCulling#isUnoccluded.
+    public boolean isUnoccluded(int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared) {
+        grazing = false;
+        CachedSectionBlockOcclusionGetter blockOcclusionGetter = this.blockOcclusionGetter;
+        // See BlockIterator#initializeNormalized.
+        double distance = Math.sqrt(distanceSquared);
+        double fixedDistance = distance == 0. ? Double.NaN : distance;
+        double rayDirectionX = differenceX / fixedDistance;
+        double rayDirectionY = differenceY / fixedDistance;
+        double rayDirectionZ = differenceZ / fixedDistance;
+        int stepX = rayDirectionX < 0. ? -1 : 1;
+        int stepY = rayDirectionY < 0. ? -1 : 1;
+        int stepZ = rayDirectionZ < 0. ? -1 : 1;
+        double tMaxX = rayDirectionX == 0. ? Double.POSITIVE_INFINITY : (x + (stepX + 1) / 2 - centerX) / rayDirectionX;
+        double tMaxY = rayDirectionY == 0. ? Double.POSITIVE_INFINITY : (y + (stepY + 1) / 2 - centerY) / rayDirectionY;
+        double tMaxZ = rayDirectionZ == 0. ? Double.POSITIVE_INFINITY : (z + (stepZ + 1) / 2 - centerZ) / rayDirectionZ;
+        double tDeltaX = 1. / Math.abs(rayDirectionX);
+        double tDeltaY = 1. / Math.abs(rayDirectionY);
+        double tDeltaZ = 1. / Math.abs(rayDirectionZ);
+        int rayX = x;
+        int rayY = y;
+        int rayZ = z;
+        // Blocks are skipped while they are within the box (shift > 0), see BlockIterator#skipBox.
+        int skipX = 0;
+        int skipY = 0;
+        int skipZ = 0;
+        int shift = 0;
+
+        while (true) {
+            // See BlockIterator#calculateNext.
+            if (tMaxX < tMaxY) {
+                if (tMaxZ < tMaxX) {
+                    if (!(tMaxZ <= distance)) {
+                        return true;
+                    }
+
+                    rayZ += stepZ;
+                    tMaxZ += tDeltaZ;
+                } else {
+                    if (!(tMaxX <= distance)) {
+                        return true;
+                    }
+
+                    if (tMaxZ == tMaxX) {
+                        rayZ += stepZ;
+                        tMaxZ += tDeltaZ;
+                    }
+
+                    rayX += stepX;
+                    tMaxX += tDeltaX;
+                }
+            } else if (tMaxY < tMaxZ) {
+                if (!(tMaxY <= distance)) {
+                    return true;
+                }
+
+                if (tMaxX == tMaxY) {
+                    rayX += stepX;
+                    tMaxX += tDeltaX;
+                }
+
+                rayY += stepY;
+                tMaxY += tDeltaY;
+            } else {
+                if (!(tMaxZ <= distance)) {
+                    return true;
+                }
+
+                if (tMaxX == tMaxZ) {
+                    rayX += stepX;
+                    tMaxX += tDeltaX;
+                }
+
+                if (tMaxY == tMaxZ) {
+                    rayY += stepY;
+                    tMaxY += tDeltaY;
+                }
+
+                rayZ += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+
+            if (shift != 0) {
+                if (rayX >> shift == skipX && rayY >> shift == skipY && rayZ >> shift == skipZ) {
+                    continue;
+                }
+
+                shift = 0;
+            }
+
+            steps++;
+
+            if (blockOcclusionGetter.isOccludingRay(rayX, rayY, rayZ)) {
+                // All nearby blocks are occluding, the nearby block check would succeed.
+                if (blockOcclusionGetter.isOccludingCube(rayX, rayY, rayZ) || checkNearbyBlocks(x, y, z, rayX, rayY, rayZ, differenceX, differenceY, differenceZ)) {
+                    return false;
+                }
+
+                grazing = true;
+            } else {
+                shift = blockOcclusionGetter.getEmptyBoxShift(rayX, rayY, rayZ);
+
+                if (shift != 0) {
+                    // Skip the remaining blocks of the empty box without looking them up.
+                    skipX = rayX >> shift;
+                    skipY = rayY >> shift;
+                    skipZ = rayZ >> shift;
+                }
+            }
+        }
+    }
+
+    // See BlockOcclusionCulling#getSteps.
+    public long getSteps() {
+        return steps;
+    }
+
+    // See BlockOcclusionCulling#isGrazing.
+    public boolean isGrazing() {
+        return grazing;
+    }
+
+    // Same as BlockOcclusionCulling#checkNearbyBlocks without the step tables.
+    // The nearby blocks are the blocks at u, u + v and v in the plane of the dominant axis of the ray, each with the block at p as fallback.
+    private boolean checkNearbyBlocks(int x, int y, int z, int rayX, int rayY, int rayZ, double differenceX, double differenceY, double differenceZ) {
+        double absDifferenceX = Math.abs(differenceX);
+        double absDifferenceY = Math.abs(differenceY);
+        double absDifferenceZ = Math.abs(differenceZ);
+        double rayDifferenceX = rayX - x;
+        double rayDifferenceY = rayY - y;
+        double rayDifferenceZ = rayZ - z;
+        int uX = 0;
+        int uY = 0;
+        int uZ = 0;
+        int vX = 0;
+        int vY = 0;
+        int vZ = 0;
+        int pX = 0;
+        int pY = 0;
+        int pZ = 0;
+
+        if (absDifferenceX > absDifferenceY && !(absDifferenceZ > absDifferenceX)) {
+            double factor = divide(differenceX, rayDifferenceX);
+            uY = multiply(factor, rayDifferenceY) - differenceY > 0. ? -1 : 1;
+            vZ = multiply(factor, rayDifferenceZ) - differenceZ > 0. ? -1 : 1;
+            pX = differenceX > 0. ? -1 : 1;
+        } else if (!(absDifferenceX > absDifferenceY) && absDifferenceY > absDifferenceZ) {
+            double factor = divide(differenceY, rayDifferenceY);
+            uZ = multiply(factor, rayDifferenceZ) - differenceZ > 0. ? -1 : 1;
+            vX = multiply(factor, rayDifferenceX) - differenceX > 0. ? -1 : 1;
+            pY = differenceY > 0. ? -1 : 1;
+        } else {
+            double factor = divide(differenceZ, rayDifferenceZ);
+            vX = multiply(factor, rayDifferenceX) - differenceX > 0. ? -1 : 1;
+            uY = multiply(factor, rayDifferenceY) - differenceY > 0. ? -1 : 1;
+            pZ = differenceZ > 0. ? -1 : 1;
+        }
+
+        return checkNearbyBlock(x, y, z, rayX + uX, rayY + uY, rayZ + uZ, pX, pY, pZ)
+                && checkNearbyBlock(x, y, z, rayX + uX + vX, rayY + uY + vY, rayZ + uZ + vZ, pX, pY, pZ)
+                && checkNearbyBlock(x, y, z, rayX + vX, rayY + vY, rayZ + vZ, pX, pY, pZ);
+    }
+
+    private boolean checkNearbyBlock(int x, int y, int z, int nearbyX, int nearbyY, int nearbyZ, int pX, int pY, int pZ) {
+        if (blockOcclusionGetter.isOccludingNearby(nearbyX, nearbyY, nearbyZ)) {
+            return true;
+        }
+
+        nearbyX += pX;
+        nearbyY += pY;
+        nearbyZ += pZ;
+        return !(nearbyX == x && nearbyY == y && nearbyZ == z) && blockOcclusionGetter.isOccludingNearby(nearbyX, nearbyY, nearbyZ);
+    }
+
+    private static double divide(double dividend, double divisor) {
+        return (divisor == 0. && !Double.isNaN(dividend) ? Math.copySign(1., dividend) : dividend) / divisor;
+    }
+
+    private static double multiply(double factor1, double factor2) {
+        return (factor2 == 0. ? Math.signum(factor1) : factor1) * factor2;
+    }
+}
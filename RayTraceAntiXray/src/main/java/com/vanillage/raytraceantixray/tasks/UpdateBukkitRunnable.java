@@ -1,6 +1,8 @@
 package com.vanillage.raytraceantixray.tasks;
 
+import com.destroystokyo.paper.antixray.ChunkPacketBlockController;
 import com.vanillage.raytraceantixray.RayTraceAntiXray;
+import com.vanillage.raytraceantixray.antixray.ChunkPacketBlockControllerAntiXray;
 import com.vanillage.raytraceantixray.data.*;
 import io.netty.channel.Channel;
 import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
@@ -10,9 +12,13 @@ import net.minecraft.network.protocol.game.ClientGamePacketListener;
 import net.minecraft.network.protocol.game.ClientboundBlockUpdatePacket;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.network.ServerGamePacketListenerImpl;
+import net.minecraft.world.level.ClipContext;
 import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.phys.BlockHitResult;
+import net.minecraft.world.phys.HitResult;
+import net.minecraft.world.phys.Vec3;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.World.Environment;
@@ -22,13 +28,15 @@ import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.util.Vector;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 public final class UpdateBukkitRunnable extends BukkitRunnable implements Consumer<ScheduledTask> {
+    private static final double MAX_PREDICTION_SPEED = 100.; // Blocks per second, faster movements are treated as teleports.
     private final RayTraceAntiXray plugin;
     private final Player player;
+    private final Location location = new Location(null, 0., 0., 0.);
+    private long elapsedTicks;
 
     public UpdateBukkitRunnable(RayTraceAntiXray plugin) {
         this(plugin, null);
@@ -41,6 +49,19 @@ public final class UpdateBukkitRunnable extends BukkitRunnable implements Consum
 
     @Override
     public void run() {
+        AdaptiveCadence adaptiveCadence = plugin.getAdaptiveCadence();
+
+        if (adaptiveCadence != null) {
+            // Scheduled every update-ticks, skip runs until the adaptive update ticks have elapsed.
+            elapsedTicks += plugin.getUpdateTicks();
+
+            if (elapsedTicks < adaptiveCadence.getUpdateTicks()) {
+                return;
+            }
+
+            elapsedTicks = 0L;
+        }
+
         if (player == null) {
             plugin.getServer().getOnlinePlayers().forEach(this::update);
         } else {
@@ -55,29 +76,52 @@ public final class UpdateBukkitRunnable extends BukkitRunnable implements Consum
 
     public void update(Player player) {
         PlayerData playerData = plugin.getPlayerData().get(player.getUniqueId());
+        World world = playerData.getWorld();
+        // Filled in place, the eye locations are written to the snapshot of the player without allocating.
+        Location location = player.getLocation(this.location);
+
+        if (location.getWorld().equals(world)) {
+            double x = location.getX();
+            double y = location.getY() + player.getEyeHeight();
+            double z = location.getZ();
+            // Same as Location#getDirection.
+            double yaw = Math.toRadians(location.getYaw());
+            double pitch = Math.toRadians(location.getPitch());
+            double xz = Math.cos(pitch);
+            double directionX = -xz * Math.sin(yaw);
+            double directionY = -Math.sin(pitch);
+            double directionZ = xz * Math.cos(yaw);
+            ChunkPacketBlockController chunkPacketBlockController = ((CraftWorld) world).getHandle().chunkPacketBlockController;
+            ChunkPacketBlockControllerAntiXray chunkPacketBlockControllerAntiXray = chunkPacketBlockController instanceof ChunkPacketBlockControllerAntiXray ? (ChunkPacketBlockControllerAntiXray) chunkPacketBlockController : null;
+            EyeSnapshot eye = playerData.getEye();
+            eye.begin();
+
+            if (chunkPacketBlockControllerAntiXray != null && chunkPacketBlockControllerAntiXray.rayTraceThirdPerson) {
+                for (VectorialLocation thirdPersonLocation : RayTraceAntiXray.getLocations(player, new VectorialLocation(world, new Vector(x, y, z), new Vector(directionX, directionY, directionZ)))) {
+                    eye.add(thirdPersonLocation);
+                }
+            } else {
+                eye.add(x, y, z, directionX, directionY, directionZ);
+            }
 
-        Location loc = player.getLocation();
-        if (loc.getWorld().equals(playerData.getLocations()[0].getWorld())) {
-            VectorialLocation location = new VectorialLocation(loc);
-            Vector vector = location.getVector();
-            vector.setY(vector.getY() + player.getEyeHeight());
-            playerData.setLocations(RayTraceAntiXray.getLocations(player, location));
-        }
+            if (chunkPacketBlockControllerAntiXray != null && chunkPacketBlockControllerAntiXray.predictionTicks != 0.) {
+                predict(player, playerData, chunkPacketBlockControllerAntiXray, x, y, z, directionX, directionY, directionZ);
+            }
 
-        World world = playerData.getLocations()[0].getWorld();
+            eye.publish();
+        }
 
         if (!player.getWorld().equals(world)) {
             return;
         }
 
-        ConcurrentMap<LongWrapper, ChunkBlocks> chunks = playerData.getChunks();
+        ChunkBlocksMap chunks = playerData.getChunks();
         ServerLevel serverLevel = ((CraftWorld) world).getHandle();
         Environment environment = world.getEnvironment();
-        Queue<Result> results = playerData.getResults();
-        Result result;
+        ResultBuffer results = playerData.getResults();
 
-        while ((result = results.poll()) != null) {
-            ChunkBlocks chunkBlocks = result.getChunkBlocks();
+        while (results.poll()) {
+            ChunkBlocks chunkBlocks = results.getChunkBlocks();
 
             // Check if the client still has the chunk loaded and if it wasn't resent in the meantime.
             // Note that even if this check passes, the server could have already unloaded or resent the chunk but the corresponding packet is still in the packet queue.
@@ -86,7 +130,8 @@ public final class UpdateBukkitRunnable extends BukkitRunnable implements Consum
                 continue;
             }
 
-            BlockPos block = result.getBlock();
+            // The block position is only created for results that are applied, the update packet keeps it.
+            BlockPos block = chunkBlocks.getBlockPos(results.getIndex());
 
             // Similar to the null check above, this check isn't actually necessary.
             // However, we don't need to send an update packet because the client will unload the chunk.
@@ -98,7 +143,7 @@ public final class UpdateBukkitRunnable extends BukkitRunnable implements Consum
             BlockState blockState;
             BlockEntity blockEntity = null;
 
-            if (result.isVisible()) {
+            if (results.isVisible()) {
                 blockState = serverLevel.getBlockState(block);
 
                 if (blockState.hasBlockEntity()) {
@@ -130,6 +175,47 @@ public final class UpdateBukkitRunnable extends BukkitRunnable implements Consum
         }
     }
 
+    // Adds the eye location extrapolated from the movement since the last update.
+    // Reveals take a ray trace tick and an update tick to arrive, fast players would otherwise see blocks pop in late.
+    private static void predict(Player player, PlayerData playerData, ChunkPacketBlockControllerAntiXray chunkPacketBlockControllerAntiXray, double x, double y, double z, double directionX, double directionY, double directionZ) {
+        long time = System.nanoTime();
+        boolean hasPreviousEye = playerData.hasPreviousEye();
+        double movementX = x - playerData.getPreviousEyeX();
+        double movementY = y - playerData.getPreviousEyeY();
+        double movementZ = z - playerData.getPreviousEyeZ();
+        long elapsed = time - playerData.getPreviousEyeTime();
+        playerData.setPreviousEye(x, y, z, time);
+
+        if (!hasPreviousEye || elapsed <= 0L) {
+            return;
+        }
+
+        double seconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1L);
+
+        if (movementX * movementX + movementY * movementY + movementZ * movementZ > MAX_PREDICTION_SPEED * MAX_PREDICTION_SPEED * seconds * seconds) {
+            return;
+        }
+
+        double scale = chunkPacketBlockControllerAntiXray.predictionTicks / 20. / seconds;
+        Vec3 from = new Vec3(x, y, z);
+        Vec3 to = from.add(movementX * scale, movementY * scale, movementZ * scale);
+        ServerLevel serverLevel = ((CraftWorld) playerData.getWorld()).getHandle();
+        BlockHitResult result = serverLevel.clip(new ClipContext(from, to, ClipContext.Block.COLLIDER, ClipContext.Fluid.NONE, ((CraftPlayer) player).getHandle()));
+
+        if (result.getType() != HitResult.Type.MISS) {
+            // Stop in front of the block in the way, the player can't get past it either.
+            Vec3 hit = result.getLocation();
+            to = hit.subtract(to.subtract(from).normalize().scale(0.1));
+        }
+
+        if (Math.floor(to.x) == Math.floor(from.x) && Math.floor(to.y) == Math.floor(from.y) && Math.floor(to.z) == Math.floor(from.z)) {
+            // Practically the same rays.
+            return;
+        }
+
+        playerData.getEye().add(to.x, to.y, to.z, directionX, directionY, directionZ);
+    }
+
     private static boolean sendPacketImmediately(Player player, Object packet) {
         ServerGamePacketListenerImpl connection = ((CraftPlayer) player).getHandle().connection;
 
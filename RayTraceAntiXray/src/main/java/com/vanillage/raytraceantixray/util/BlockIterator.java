@@ -188,6 +188,18 @@ public final class BlockIterator implements Iterator<int[]> {
         return next;
     }
 
+    // Advances to the first voxel outside of the aligned box of size 2^shift at the given box coordinates (voxel coordinates >> shift).
+    // The voxel sequence is the same as with calculateNext. Returns the voxel or null if the end of the ray has been reached.
+    public int[] skipBox(int boxX, int boxY, int boxZ, int shift) {
+        int[] ray;
+
+        while ((ray = calculateNext()) != null && ray[0] >> shift == boxX && ray[1] >> shift == boxY && ray[2] >> shift == boxZ) {
+
+        }
+
+        return ray;
+    }
+
     @Override
     public boolean hasNext() {
         return next != null;
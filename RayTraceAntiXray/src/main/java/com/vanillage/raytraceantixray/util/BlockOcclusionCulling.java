@@ -23,12 +23,49 @@ public final class BlockOcclusionCulling {
     private static final IntArrayConsumer[] NEARBY_BLOCKS_Z_PLANE_X_NEG_Y_NEG = new IntArrayConsumer[] { DECREASE_Y, DECREASE_X, INCREASE_Y /* DECREASE_X, DECREASE_Y, INCREASE_X */ };
     private final BlockIteratorFactory blockIteratorFactory;
     private final BlockOcclusionGetter blockOcclusionGetter;
+    private static final double BLOCK_RADIUS = Math.sqrt(3.) / 2.; // Radius of the bounding sphere of a block.
     private final boolean frustumCullingEnabled;
+    // Sine and cosine of the half field of view angles or NaN if the side planes are disabled.
+    private final double sinHorizontal;
+    private final double cosHorizontal;
+    private final double sinVertical;
+    private final double cosVertical;
+    // View basis of the last direction, see #isInFrustum.
+    private double lastDirectionX = Double.NaN;
+    private double lastDirectionY = Double.NaN;
+    private double lastDirectionZ = Double.NaN;
+    private double forwardX;
+    private double forwardY;
+    private double forwardZ;
+    private double rightX;
+    private double rightZ;
+    private double upX;
+    private double upY;
+    private double upZ;
+    private boolean grazing;
+    private long steps; // Number of blocks looked up by the rays, for accounting.
 
     public BlockOcclusionCulling(BlockIteratorFactory blockIteratorFactory, BlockOcclusionGetter blockOcclusionGetter, boolean frustumCullingEnabled) {
+        this(blockIteratorFactory, blockOcclusionGetter, frustumCullingEnabled, 0., 0.);
+    }
+
+    // The fields of view are in degrees, the side planes of the view frustum are only checked if both are greater than 0 and less than 180.
+    public BlockOcclusionCulling(BlockIteratorFactory blockIteratorFactory, BlockOcclusionGetter blockOcclusionGetter, boolean frustumCullingEnabled, double horizontalFov, double verticalFov) {
         this.blockIteratorFactory = blockIteratorFactory;
         this.blockOcclusionGetter = blockOcclusionGetter;
         this.frustumCullingEnabled = frustumCullingEnabled;
+
+        if (horizontalFov > 0. && horizontalFov < 180. && verticalFov > 0. && verticalFov < 180.) {
+            sinHorizontal = Math.sin(Math.toRadians(horizontalFov / 2.));
+            cosHorizontal = Math.cos(Math.toRadians(horizontalFov / 2.));
+            sinVertical = Math.sin(Math.toRadians(verticalFov / 2.));
+            cosVertical = Math.cos(Math.toRadians(verticalFov / 2.));
+        } else {
+            sinHorizontal = Double.NaN;
+            cosHorizontal = Double.NaN;
+            sinVertical = Double.NaN;
+            cosVertical = Double.NaN;
+        }
     }
 
     public boolean isVisible(int x, int y, int z, double vectorX, double vectorY, double vectorZ, double directionX, double directionY, double directionZ) {
@@ -42,28 +79,105 @@ public final class BlockOcclusionCulling {
     }
 
     public boolean isVisible(int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared, double directionX, double directionY, double directionZ) {
-        if (frustumCullingEnabled && (differenceX - directionX) * directionX + (differenceY - directionY) * directionY + (differenceZ - directionZ) * directionZ > 0.) { // Should actually be (difference - Math.sqrt(3.) * direction / 2.) * direction.
+        if (!isInFrustum(differenceX, differenceY, differenceZ, directionX, directionY, directionZ)) {
+            grazing = false;
             return false;
         }
 
+        return isUnoccluded(x, y, z, centerX, centerY, centerZ, differenceX, differenceY, differenceZ, distanceSquared);
+    }
+
+    // Same as isVisible without the view frustum check, e.g. for rays that don't start at the eye.
+    public boolean isUnoccluded(int x, int y, int z, double centerX, double centerY, double centerZ, double differenceX, double differenceY, double differenceZ, double distanceSquared) {
+        grazing = false;
         double distance = Math.sqrt(distanceSquared);
         double fixedDistance = distance == 0. ? Double.NaN : distance;
         BlockIterator blockIterator = blockIteratorFactory.getBlockIterator(x, y, z, centerX, centerY, centerZ, differenceX / fixedDistance, differenceY / fixedDistance, differenceZ / fixedDistance, distance);
-        int[] ray;
+        int[] ray = blockIterator.calculateNext();
 
-        while ((ray = blockIterator.calculateNext()) != null) {
+        while (ray != null) {
+            steps++;
             int rayX = ray[0];
             int rayY = ray[1];
             int rayZ = ray[2];
 
-            if (blockOcclusionGetter.isOccludingRay(rayX, rayY, rayZ) && checkNearbyBlocks(x, y, z, ray, rayX, rayY, rayZ, differenceX, differenceY, differenceZ)) {
-                return false;
+            if (blockOcclusionGetter.isOccludingRay(rayX, rayY, rayZ)) {
+                // All nearby blocks are occluding, the nearby block check would succeed.
+                if (blockOcclusionGetter.isOccludingCube(rayX, rayY, rayZ) || checkNearbyBlocks(x, y, z, ray, rayX, rayY, rayZ, differenceX, differenceY, differenceZ)) {
+                    return false;
+                }
+
+                grazing = true;
+            } else {
+                int shift = blockOcclusionGetter.getEmptyBoxShift(rayX, rayY, rayZ);
+
+                if (shift != 0) {
+                    // Skip the remaining blocks of the empty box without looking them up.
+                    ray = blockIterator.skipBox(rayX >> shift, rayY >> shift, rayZ >> shift, shift);
+                    continue;
+                }
             }
+
+            ray = blockIterator.calculateNext();
         }
 
         return true;
     }
 
+    public boolean isInFrustum(double differenceX, double differenceY, double differenceZ, double directionX, double directionY, double directionZ) {
+        if (!frustumCullingEnabled) {
+            return true;
+        }
+
+        if ((differenceX - directionX) * directionX + (differenceY - directionY) * directionY + (differenceZ - directionZ) * directionZ > 0.) { // Should actually be (difference - Math.sqrt(3.) * direction / 2.) * direction.
+            return false;
+        }
+
+        if (Double.isNaN(sinHorizontal)) {
+            return true;
+        }
+
+        if (directionX != lastDirectionX || directionY != lastDirectionY || directionZ != lastDirectionZ) {
+            updateBasis(directionX, directionY, directionZ);
+        }
+
+        // The side planes go through the eye. The block is outside if its bounding sphere is completely on the outer side of a plane.
+        // Comparisons with NaN are false, so the block is inside if the basis is undefined (looking straight up or down).
+        double forward = -(differenceX * forwardX + differenceY * forwardY + differenceZ * forwardZ);
+        double right = -(differenceX * rightX + differenceZ * rightZ);
+        double up = -(differenceX * upX + differenceY * upY + differenceZ * upZ);
+        return !(Math.abs(right) * cosHorizontal - forward * sinHorizontal > BLOCK_RADIUS || Math.abs(up) * cosVertical - forward * sinVertical > BLOCK_RADIUS);
+    }
+
+    // Camera basis without roll.
+    private void updateBasis(double directionX, double directionY, double directionZ) {
+        lastDirectionX = directionX;
+        lastDirectionY = directionY;
+        lastDirectionZ = directionZ;
+        double length = Math.sqrt(directionX * directionX + directionY * directionY + directionZ * directionZ);
+        double horizontalLength = Math.sqrt(directionX * directionX + directionZ * directionZ);
+        forwardX = directionX / length;
+        forwardY = directionY / length;
+        forwardZ = directionZ / length;
+        // NaN if the direction is vertical.
+        rightX = -directionZ / horizontalLength;
+        rightZ = directionX / horizontalLength;
+        upX = forwardY * rightZ;
+        upY = forwardZ * rightX - forwardX * rightZ;
+        upZ = -forwardY * rightX;
+    }
+
+    // Whether the ray of the last call of isVisible passed an occluding block that was rejected by the nearby block check.
+    // Such a ray passes close to an occluder edge and its result may change with a small movement of the player.
+    public boolean isGrazing() {
+        return grazing;
+    }
+
+    // Total number of blocks looked up by the rays of this instance.
+    public long getSteps() {
+        return steps;
+    }
+
     private boolean checkNearbyBlocks(int x, int y, int z, int[] ray, int rayX, int rayY, int rayZ, double differenceX, double differenceY, double differenceZ) {
         IntArrayConsumer[] nearbyBlocks;
         IntArrayConsumer increase;
@@ -234,5 +348,17 @@ public final class BlockOcclusionCulling {
         default boolean isOccludingNearby(int x, int y, int z) {
             return isOccluding(x, y, z);
         }
+
+        // Returns true only if the block and all 26 blocks around it are occluding.
+        // Called after isOccludingRay returned true for the same block.
+        default boolean isOccludingCube(int x, int y, int z) {
+            return false;
+        }
+
+        // Returns s > 0 if the aligned box of size 2^s containing the block only contains non-occluding blocks, 0 otherwise.
+        // Called after isOccludingRay returned false for the same block.
+        default int getEmptyBoxShift(int x, int y, int z) {
+            return 0;
+        }
     }
 }
@@ -0,0 +1,58 @@
+package com.vanillage.raytraceantixray.util;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Limits the number of concurrently running tasks of an executor that starts a thread per task, such as a virtual thread per task executor.
+// Waiting tasks are parked on the semaphore, which is cheap for virtual threads.
+public final class BoundedExecutorService extends AbstractExecutorService {
+    private final ExecutorService executorService;
+    private final Semaphore permits;
+
+    public BoundedExecutorService(ExecutorService executorService, int parallelism) {
+        this.executorService = executorService;
+        permits = new Semaphore(parallelism);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executorService.execute(() -> {
+            // Uninterruptibly, the command must run, otherwise the future of invokeAll would never complete.
+            permits.acquireUninterruptibly();
+
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return executorService.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executorService.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executorService.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService.awaitTermination(timeout, unit);
+    }
+}